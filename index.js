@@ -20,12 +20,76 @@ const LocationEventEmitter = new NativeEventEmitter(RCTLocationObserver);
 
 var subscriptions = [];
 var updatesEnabled = false;
+var ackSubscription = null;
+var nextRequestId = 1;
 
 type GeoOptions = {
   timeout: number,
   maximumAge: number,
   enableHighAccuracy: bool,
   distanceFilter: number,
+  compact: bool,
+  backpressure: 'latest' | 'dropOldest' | 'batch',
+  queueSize: number,
+  recordHistory: bool,
+  historyRetention: number,
+  minQuality: number,
+  desiredAccuracy: number,
+  suppressDuplicates: bool,
+  heartbeat: number,
+}
+
+/*
+ * Decodes a compact payload (a flat array of doubles, `compactStride` values per
+ * fix) back into Geolocation position objects.
+ */
+function decodeCompact(values: Array<number>): Array<Object> {
+  const stride = RCTLocationObserver.compactStride;
+  const fields = RCTLocationObserver.compactFields;
+  const positions = [];
+  for (let offset = 0; offset + stride <= values.length; offset += stride) {
+    positions.push({
+      coords: {
+        latitude: values[offset + fields.latitude],
+        longitude: values[offset + fields.longitude],
+        altitude: values[offset + fields.altitude],
+        accuracy: values[offset + fields.accuracy],
+        heading: values[offset + fields.heading],
+        speed: values[offset + fields.speed],
+      },
+      timestamp: values[offset + fields.timestamp],
+      quality: values[offset + fields.quality],
+    });
+  }
+  return positions;
+}
+
+/*
+ * Invokes `callback` for every position carried by a `geolocationDidChange` payload,
+ * which is a single position map, a batch of maps or a compact array.
+ */
+function forEachPosition(payload: Object | Array<any>, callback: Function) {
+  if (!Array.isArray(payload)) {
+    callback(payload);
+    return;
+  }
+  const positions = typeof payload[0] === 'number' ? decodeCompact(payload) : payload;
+  positions.forEach((position) => callback(position));
+}
+
+/*
+ * The native threshold has to let through every fix some watcher wants, so it is
+ * the lowest minQuality among the active watches.
+ */
+function lowestMinQuality(): number {
+  var lowest = null;
+  for (var ii = 0; ii < subscriptions.length; ii++) {
+    var sub = subscriptions[ii];
+    if (sub && (lowest === null || sub[2] < lowest)) {
+      lowest = sub[2];
+    }
+  }
+  return lowest || 0;
 }
 
 /**
@@ -54,43 +118,109 @@ var Geolocation = {
    * options: timeout (ms), maximumAge (ms), enableHighAccuracy (bool)
    * On Android, this can return almost immediately if the location is cached or
    * request an update, which might take a while.
+   *
+   * Passing geo_progress makes the request progressive: it is called with
+   * (position, stage) for the cached fix if it is within maximumAge, then for
+   * the first live fix and every more accurate one after it ('network' or
+   * 'gps') until one is within desiredAccuracy (m, default 50),
+   * which goes to geo_success. At the timeout geo_success gets the best fix seen
+   * so far; geo_error is only called if there was none.
    */
   getCurrentPosition: function(
     geo_success: Function,
     geo_error?: Function,
-    geo_options?: GeoOptions
+    geo_options?: GeoOptions,
+    geo_progress?: Function
   ) {
     invariant(
       typeof geo_success === 'function',
       'Must provide a valid geo_success callback.'
     );
+    if (!geo_progress) {
+      RCTLocationObserver.getCurrentPosition(
+        geo_options || {},
+        geo_success,
+        geo_error || logError
+      );
+      return;
+    }
+    const onProgress = geo_progress;
+    const requestId = nextRequestId++;
+    const progressSubscription = LocationEventEmitter.addListener(
+      'geolocationProgress',
+      (event) => {
+        if (event.requestId === requestId) {
+          onProgress(event.position, event.stage);
+        }
+      }
+    );
     RCTLocationObserver.getCurrentPosition(
-      geo_options || {},
-      geo_success,
-      geo_error || logError
+      {...geo_options, progressive: true, requestId},
+      (position) => {
+        progressSubscription.remove();
+        geo_success(position);
+      },
+      (error) => {
+        progressSubscription.remove();
+        (geo_error || logError)(error);
+      }
     );
   },
 
   /*
    * Invokes the success callback whenever the location changes.  Supported
-   * options: timeout (ms), maximumAge (ms), enableHighAccuracy (bool), distanceFilter(m)
+   * options: timeout (ms), maximumAge (ms), enableHighAccuracy (bool), distanceFilter(m),
+   * compact (bool) to receive fixes as flat numeric arrays over the bridge,
+   * backpressure ('latest', 'dropOldest' or 'batch') and queueSize to hold back
+   * fixes natively while earlier ones are still being processed, recordHistory
+   * (bool) to keep fixes on the device and historyRetention (ms), and minQuality
+   * (0-1) to skip fixes whose `quality` score is lower.
+   *
+   * Repeats of the previous fix are not delivered unless suppressDuplicates is
+   * false. With heartbeat (ms) set, the optional unchanged callback is called
+   * with {timestamp, repeats} at most that often while fixes keep repeating.
    */
-  watchPosition: function(success: Function, error?: Function, options?: GeoOptions): number {
+  watchPosition: function(
+    success: Function,
+    error?: Function,
+    options?: GeoOptions,
+    unchanged?: Function
+  ): number {
+    var minQuality = (options && options.minQuality) || 0;
     if (!updatesEnabled) {
       RCTLocationObserver.startObserving(options || {});
       updatesEnabled = true;
+    } else if (minQuality < lowestMinQuality()) {
+      RCTLocationObserver.setMinQuality(minQuality);
     }
+    var needsAck = !!(options && options.backpressure);
     var watchID = subscriptions.length;
     subscriptions.push([
       LocationEventEmitter.addListener(
         'geolocationDidChange',
-        success
+        (payload) => forEachPosition(payload, (position) => {
+          if (!(position.quality < minQuality)) {
+            success(position);
+          }
+        })
       ),
       error ? LocationEventEmitter.addListener(
         'geolocationError',
         error
       ) : null,
+      minQuality,
+      unchanged ? LocationEventEmitter.addListener(
+        'geolocationUnchanged',
+        unchanged
+      ) : null,
     ]);
+    if (needsAck && !ackSubscription) {
+      // registered after the watcher so the ack follows its callback
+      ackSubscription = LocationEventEmitter.addListener(
+        'geolocationDidChange',
+        () => RCTLocationObserver.acknowledgeLocations()
+      );
+    }
     return watchID;
   },
 
@@ -105,6 +235,7 @@ var Geolocation = {
     sub[0].remove();
     // array element refinements not yet enabled in Flow
     var sub1 = sub[1]; sub1 && sub1.remove();
+    var sub3 = sub[3]; sub3 && sub3.remove();
     subscriptions[watchID] = undefined;
     var noWatchers = true;
     for (var ii = 0; ii < subscriptions.length; ii++) {
@@ -114,13 +245,250 @@ var Geolocation = {
     }
     if (noWatchers) {
       Geolocation.stopObserving();
+    } else {
+      RCTLocationObserver.setMinQuality(lowestMinQuality());
     }
   },
 
+  /*
+   * Invokes the callback with delivery metrics: delivered, dropped and pending
+   * fix counts, lastLag, maxLag and averageLag (ms), and the number of repeated
+   * fixes suppressed.
+   */
+  getDeliveryMetrics: function(callback: Function) {
+    RCTLocationObserver.getDeliveryMetrics(callback);
+  },
+
+  /*
+   * Starts the native odometer. Supported options: maxAccuracy (m), minStep (m),
+   * movingSpeed (m/s), milestone (m), plus the watchPosition location options.
+   * If `onMilestone` is given it is invoked with the totals every `milestone` meters;
+   * the returned subscription must be removed by the caller.
+   */
+  startOdometer: function(options?: Object, onMilestone?: Function): ?Object {
+    RCTLocationObserver.startOdometer(options || {});
+    return onMilestone ?
+      LocationEventEmitter.addListener('odometerMilestone', onMilestone) : null;
+  },
+
+  stopOdometer: function() {
+    RCTLocationObserver.stopOdometer();
+  },
+
+  /*
+   * Invokes the callback with distance (m), movingTime (ms), maxSpeed and
+   * averageSpeed (m/s), acceptedFixes and rejectedFixes.
+   */
+  getOdometer: function(callback: Function) {
+    RCTLocationObserver.getOdometer(callback);
+  },
+
+  resetOdometer: function() {
+    RCTLocationObserver.resetOdometer();
+  },
+
+  /*
+   * Invokes the callback with the position predicted for `timestamp` (epoch ms,
+   * defaults to now) from the latest fixes, or null before the first fix.
+   * `coords.accuracy` is the error bound in meters, `coords.speed` is in km/h
+   * like every other position from this module, and `extrapolated` tells
+   * whether the time lies past the last fix.
+   */
+  predictPosition: function(callback: Function, timestamp?: number) {
+    RCTLocationObserver.predictPosition(timestamp || 0, callback);
+  },
+
+  /*
+   * Pushes predicted positions aligned to display frames. Supported options:
+   * interval (ms, default every frame), plus the watchPosition location options.
+   * Returns the subscription, which the caller must remove.
+   */
+  startPredictionUpdates: function(callback: Function, options?: Object): Object {
+    RCTLocationObserver.startPredictionUpdates(options || {});
+    return LocationEventEmitter.addListener('geolocationPrediction', callback);
+  },
+
+  stopPredictionUpdates: function() {
+    RCTLocationObserver.stopPredictionUpdates();
+  },
+
+  /*
+   * Keeps tracking from a foreground service while the app is backgrounded.
+   * Fixes are recorded in the on-device history and `onBatch` is invoked with an
+   * array of positions only every batchSize fixes or batchInterval ms. Supported
+   * options: batchSize, batchInterval (ms), compact (bool), historyRetention
+   * (ms), notificationTitle, notificationText. Returns the subscription, which
+   * the caller must remove.
+   */
+  startBackgroundTracking: function(onBatch: Function, options?: Object): Object {
+    RCTLocationObserver.startBackgroundTracking(options || {});
+    return LocationEventEmitter.addListener('geolocationBatch', (payload) => {
+      var positions = [];
+      forEachPosition(payload, (position) => positions.push(position));
+      onBatch(positions);
+    });
+  },
+
+  stopBackgroundTracking: function() {
+    RCTLocationObserver.stopBackgroundTracking();
+  },
+
+  /*
+   * Segments fixes into stops and trips natively. Supported options: radius (m),
+   * minDuration (ms), maxAccuracy (m), plus the watchPosition location options.
+   * `listeners` may hold onStopStart, onStopEnd and onTripSummary callbacks; the
+   * returned subscription removes all of them.
+   */
+  startSegmentation: function(options?: Object, listeners?: Object): Object {
+    RCTLocationObserver.startSegmentation(options || {});
+    var handlers = listeners || {};
+    var segmentSubscriptions = [
+      handlers.onStopStart ?
+        LocationEventEmitter.addListener('stopStart', handlers.onStopStart) : null,
+      handlers.onStopEnd ?
+        LocationEventEmitter.addListener('stopEnd', handlers.onStopEnd) : null,
+      handlers.onTripSummary ?
+        LocationEventEmitter.addListener('tripSummary', handlers.onTripSummary) : null,
+    ];
+    return {
+      remove: function() {
+        segmentSubscriptions.forEach((sub) => sub && sub.remove());
+      },
+    };
+  },
+
+  stopSegmentation: function() {
+    RCTLocationObserver.stopSegmentation();
+  },
+
+  /*
+   * Aggregates dwell time per geohash cell natively. Supported options:
+   * precision (geohash characters), maxCells, maxGap (ms), maxAccuracy (m), plus
+   * the watchPosition location options.
+   */
+  startDwellAggregation: function(options?: Object) {
+    RCTLocationObserver.startDwellAggregation(options || {});
+  },
+
+  stopDwellAggregation: function() {
+    RCTLocationObserver.stopDwellAggregation();
+  },
+
+  /*
+   * Invokes the callback with `{cells, trackedCells, evictedCells}`, where cells
+   * are the `count` cells with the most dwell time.
+   */
+  getTopDwellCells: function(count: number, callback: Function) {
+    RCTLocationObserver.getTopDwellCells(count, callback);
+  },
+
+  resetDwellAggregation: function() {
+    RCTLocationObserver.resetDwellAggregation();
+  },
+
+  /*
+   * Uploads fixes natively in gzipped batches, without involving JS. Config:
+   * url, headers, maxBatchSize, maxBatchAge (ms), baseRetryDelay (ms),
+   * maxRetryDelay (ms), maxQueueDepth (batches), maxQueueAge (ms), plus the
+   * watchPosition location options. Batches the server rejects with a 4xx other
+   * than 408 or 429 are set aside instead of retried.
+   */
+  startUploader: function(config: Object) {
+    RCTLocationObserver.startUploader(config);
+  },
+
+  stopUploader: function() {
+    RCTLocationObserver.stopUploader();
+  },
+
+  /*
+   * Invokes the callback with queueDepth, pendingFixes, uploadedBatches,
+   * uploadedFixes, failedAttempts, lastDeliveryLag (ms), oldestQueuedAge (ms),
+   * deadLetters (rejected batches) and droppedBatches (over the queue limits).
+   */
+  getUploaderMetrics: function(callback: Function) {
+    RCTLocationObserver.getUploaderMetrics(callback);
+  },
+
+  /*
+   * History queries resolve with a page `{fixes, cursor}`; pass `cursor` back
+   * in the query to fetch the next page, it is null once exhausted.
+   *
+   * Query by time: {from, to, limit, cursor}, times in epoch ms.
+   */
+  queryHistoryByTime: function(query: Object, success: Function, error?: Function) {
+    RCTLocationObserver.queryHistoryByTime(query, success, error || logError);
+  },
+
+  /*
+   * Query by bounding box: {minLatitude, minLongitude, maxLatitude, maxLongitude,
+   * from, to, limit, cursor}.
+   */
+  queryHistoryInBox: function(query: Object, success: Function, error?: Function) {
+    RCTLocationObserver.queryHistoryInBox(query, success, error || logError);
+  },
+
+  /*
+   * Query nearest to a point: {latitude, longitude, maxDistance, limit, cursor}.
+   * Each fix carries its `distance` in meters.
+   */
+  queryHistoryNearest: function(query: Object, success: Function, error?: Function) {
+    RCTLocationObserver.queryHistoryNearest(query, success, error || logError);
+  },
+
+  clearHistory: function() {
+    RCTLocationObserver.clearHistory();
+  },
+
+  /*
+   * Batch geometry against the latest fix, computed natively off the JS thread.
+   * Points are packed as [lat0, lon0, lat1, lon1, ...]. Every result carries
+   * the `origin` position it was computed from.
+   *
+   * measureDistances gives {distances} in meters, one per point.
+   */
+  measureDistances: function(points: Array<number>, success: Function, error?: Function) {
+    RCTLocationObserver.measureDistances(points, success, error || logError);
+  },
+
+  /*
+   * Gives {bearings} in degrees clockwise from north, one per point.
+   */
+  measureBearings: function(points: Array<number>, success: Function, error?: Function) {
+    RCTLocationObserver.measureBearings(points, success, error || logError);
+  },
+
+  /*
+   * Gives the `count` nearest points as {indices, distances}, nearest first.
+   */
+  findNearest: function(
+    points: Array<number>,
+    count: number,
+    success: Function,
+    error?: Function
+  ) {
+    RCTLocationObserver.findNearest(points, count, success, error || logError);
+  },
+
+  /*
+   * Gives {inside} for a polygon packed like the points above.
+   */
+  containsCurrentPosition: function(
+    polygon: Array<number>,
+    success: Function,
+    error?: Function
+  ) {
+    RCTLocationObserver.containsCurrentPosition(polygon, success, error || logError);
+  },
+
   stopObserving: function() {
     if (updatesEnabled) {
       RCTLocationObserver.stopObserving();
       updatesEnabled = false;
+      if (ackSubscription) {
+        ackSubscription.remove();
+        ackSubscription = null;
+      }
       for (var ii = 0; ii < subscriptions.length; ii++) {
         var sub = subscriptions[ii];
         if (sub) {
@@ -128,6 +496,7 @@ var Geolocation = {
           sub[0].remove();
           // array element refinements not yet enabled in Flow
           var sub1 = sub[1]; sub1 && sub1.remove();
+          var sub3 = sub[3]; sub3 && sub3.remove();
         }
       }
       subscriptions = [];
@@ -1,6 +1,9 @@
 package com.rnandroidgeolocation;
 
+import android.content.Intent;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
 
 import com.baidu.location.BDLocation;
 import com.baidu.location.BDLocationListener;
@@ -11,14 +14,19 @@ import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.UiThreadUtil;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.common.SystemClock;
 import com.facebook.react.modules.core.DeviceEventManagerModule.RCTDeviceEventEmitter;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -29,40 +37,255 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
 
   private @Nullable String mWatchedProvider;
   private static final int RCT_DEFAULT_LOCATION_ACCURACY = 100;
-  private BaiduLocationService baiduLocationService;
-  private static final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd hh:mm:ssZ");
+  private volatile BaiduLocationService baiduLocationService;
+  private volatile @Nullable LocationEngine mEngine;
+  private volatile boolean mCompactEncoding;
+  private volatile boolean mRecordHistory;
+  private @Nullable HandlerThread mProcessingThread;
+  private @Nullable Handler mProcessingHandler;
+  private @Nullable LocationUploader mUploader;
+  private final FixQuality mFixQuality = new FixQuality();
+  private volatile double mMinQuality;
+  private final DuplicateFixFilter mDuplicateFilter = new DuplicateFixFilter();
 
   private final BDLocationListener mLocationListener = new BDLocationListener() {
 
     @Override
     public void onReceiveLocation(BDLocation location) {
-      // TODO Auto-generated method stub
-      if (null != location && location.getLocType() != BDLocation.TypeServerError) {
+      if (null == location) {
+        return;
+      }
+      if (!LocationCodec.hasPosition(location)) {
+        emitError(LocationCodec.describeFailure(location));
+        return;
+      }
+      int check = mDuplicateFilter.check(location, SystemClock.uptimeMillis());
+      if (check == DuplicateFixFilter.HEARTBEAT) {
+        WritableMap event = Arguments.createMap();
+        event.putDouble("timestamp", LocationCodec.parseTime(location));
+        event.putInt("repeats", mDuplicateFilter.getRepeats());
         getReactApplicationContext().getJSModule(RCTDeviceEventEmitter.class)
-                .emit("geolocationDidChange", locationToMap(location));
+                .emit("geolocationUnchanged", event);
+      }
+      if (check != DuplicateFixFilter.EMIT) {
+        return;
+      }
+      // the tracking service already records every fix
+      if (mRecordHistory && !LocationTrackingService.isRunning()) {
+        recordHistory(location);
+      }
+      double quality = mFixQuality.score(location, LocationCodec.parseTime(location));
+      if (quality >= mMinQuality) {
+        mDeliveryQueue.offer(location, quality, SystemClock.uptimeMillis());
+      }
+    }
+  };
+
+  private final LocationDeliveryQueue mDeliveryQueue = new LocationDeliveryQueue(
+    new LocationDeliveryQueue.Sink() {
+      @Override
+      public void deliver(List<BDLocation> fixes, double[] qualities, boolean batch) {
+        Object payload;
+        if (mCompactEncoding) {
+          payload = LocationCodec.toCompactArray(fixes, qualities);
+        } else if (batch) {
+          WritableArray array = Arguments.createArray();
+          for (int i = 0; i < fixes.size(); i++) {
+            array.pushMap(LocationCodec.toMap(fixes.get(i), qualities[i]));
+          }
+          payload = array;
+        } else {
+          payload = LocationCodec.toMap(fixes.get(0), qualities[0]);
+        }
+        getReactApplicationContext().getJSModule(RCTDeviceEventEmitter.class)
+                .emit("geolocationDidChange", payload);
+      }
+    });
+
+  private final TripOdometer mOdometer = new TripOdometer();
+  private final BDLocationListener mOdometerListener = new BDLocationListener() {
+
+    @Override
+    public void onReceiveLocation(BDLocation location) {
+      if (null != location && mOdometer.feed(location, SystemClock.currentTimeMillis())) {
+        getReactApplicationContext().getJSModule(RCTDeviceEventEmitter.class)
+                .emit("odometerMilestone", mOdometer.toMap());
+      }
+    }
+  };
+
+  private final BDLocationListener mUploadListener = new BDLocationListener() {
+
+    @Override
+    public void onReceiveLocation(BDLocation location) {
+      if (null != location && LocationCodec.hasPosition(location)) {
+        getUploader().offer(location, LocationCodec.parseTime(location));
+      }
+    }
+  };
+
+  private final StaySegmenter mSegmenter = new StaySegmenter(new StaySegmenter.Sink() {
+    @Override
+    public void emit(String eventName, WritableMap event) {
+      getReactApplicationContext().getJSModule(RCTDeviceEventEmitter.class)
+              .emit(eventName, event);
+    }
+  });
+  private final BDLocationListener mSegmentationListener = new BDLocationListener() {
+
+    @Override
+    public void onReceiveLocation(BDLocation location) {
+      if (null != location) {
+        // receipt time: the SDK's server time stays frozen while the device doesn't move
+        mSegmenter.feed(location, SystemClock.currentTimeMillis());
+      }
+    }
+  };
+
+  private final PositionPredictor mPredictor = new PositionPredictor();
+  private final BDLocationListener mPredictorListener = new BDLocationListener() {
+
+    @Override
+    public void onReceiveLocation(BDLocation location) {
+      if (null != location) {
+        mPredictor.feed(location, SystemClock.currentTimeMillis());
+      }
+    }
+  };
+  private volatile boolean mObserving;
+  private volatile boolean mPredictionUpdates;
+  private volatile long mPredictionInterval;
+  private long mLastPredictionFrame;
+  private final Choreographer.FrameCallback mPredictionFrameCallback =
+          new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      if (!mPredictionUpdates) return;
+      long frameTime = frameTimeNanos / 1000000;
+      if (frameTime - mLastPredictionFrame >= mPredictionInterval) {
+        mLastPredictionFrame = frameTime;
+        WritableMap prediction = mPredictor.predict(SystemClock.currentTimeMillis());
+        if (prediction != null) {
+          getReactApplicationContext().getJSModule(RCTDeviceEventEmitter.class)
+                  .emit("geolocationPrediction", prediction);
+        }
       }
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+  };
+
+  private final DwellAggregator mDwellAggregator = new DwellAggregator();
+  private final BDLocationListener mDwellListener = new BDLocationListener() {
+
+    @Override
+    public void onReceiveLocation(BDLocation location) {
+      if (null != location) {
+        mDwellAggregator.feed(location, SystemClock.currentTimeMillis());
+      }
+    }
+  };
+
+  private volatile boolean mCompactBatches;
+  private final LocationEngine.BatchListener mBatchListener = new LocationEngine.BatchListener() {
+    @Override
+    public void onBatch(List<BDLocation> fixes) {
+      WritableArray payload;
+      if (mCompactBatches) {
+        payload = LocationCodec.toCompactArray(fixes, null);
+      } else {
+        payload = Arguments.createArray();
+        for (int i = 0; i < fixes.size(); i++) {
+          payload.pushMap(locationToMap(fixes.get(i)));
+        }
+      }
+      getReactApplicationContext().getJSModule(RCTDeviceEventEmitter.class)
+              .emit("geolocationBatch", payload);
     }
   };
 
   public AndroidGeolocationModule(ReactApplicationContext reactContext) {
     super(reactContext);
-//    buildBaiduApiClient();
+    reactContext.addLifecycleEventListener(this);
+  }
+
+  private void buildBaiduApiClient() {
+    if (baiduLocationService != null) return;
+    // may wait for the main thread, so it must not run under the module lock, which
+    // onHostDestroy takes on the main thread
+    LocationEngine engine = LocationEngine.get(getReactApplicationContext());
+    synchronized (this) {
+      if (mEngine == null) {
+        mEngine = engine;
+        engine.attach(this);
+        baiduLocationService = engine.getService();
+        // a tracking service started by an earlier context is still collecting
+        if (LocationTrackingService.isRunning()) {
+          engine.addBatchListener(mBatchListener);
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases everything this module subscribed to the shared engine. Another React context
+   * may still be using it. Only done when the React instance goes away: the activity can
+   * finish while the context, and the watches JS holds in it, live on.
+   */
+  private synchronized void detachFromEngine() {
+    if (mEngine == null) return;
+    mEngine.removeBatchListener(mBatchListener);
+    mEngine.detach(this,
+            mLocationListener, mPredictorListener, mOdometerListener, mUploadListener,
+            mSegmentationListener, mDwellListener);
+    mEngine = null;
+    baiduLocationService = null;
+    mObserving = false;
+    mDeliveryQueue.reset();
+  }
+
+  /**
+   * Background thread for disk and bulk work, so neither the SDK callback thread nor the
+   * bridge thread blocks on it.
+   */
+  private synchronized Handler getProcessingHandler() {
+    if (mProcessingHandler == null) {
+      mProcessingThread = new HandlerThread("BDLocationProcessing");
+      mProcessingThread.start();
+      mProcessingHandler = new Handler(mProcessingThread.getLooper());
+    }
+    return mProcessingHandler;
+  }
+
+  private synchronized LocationUploader getUploader() {
+    if (mUploader == null) {
+      mUploader = new LocationUploader(
+              new File(getReactApplicationContext().getFilesDir(), "rn-geolocation-uploads"));
+    }
+    return mUploader;
+  }
+
+  /**
+   * Subscribes a native consumer to the fix stream, starting the client with {@code options}
+   * unless a watch or another consumer is already subscribed.
+   */
+  private void attachConsumer(BDLocationListener listener, ReadableMap options) {
+    buildBaiduApiClient();
+    baiduLocationService.registerListenerIfIdle(listener, fromReactMap(options));
+    baiduLocationService.start();
   }
 
-  private synchronized void buildBaiduApiClient() {
-//    this.getReactApplicationContext().getCurrentActivity().runOnUiThread(
-//      new Thread(
-//            new Runnable() {
-//              @Override
-//              public void run() {
-//                Looper.prepare();
-        if(baiduLocationService==null)
-                baiduLocationService = new BaiduLocationService(getReactApplicationContext());
-//                Looper.loop();
-//              }
-//            }
-//      ).start();
+  private void detachConsumer(BDLocationListener listener) {
+    BaiduLocationService service = baiduLocationService;
+    if (service == null) return;
+    service.unregisterListener(listener);
+    service.stopIfIdle();
+  }
 
+  /**
+   * Shared with the tracking service through the engine. Only call on the processing thread.
+   */
+  private LocationHistoryStore getHistory() {
+    return LocationEngine.get(getReactApplicationContext()).getHistory();
   }
 
   @Override
@@ -70,6 +293,24 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
     return "BDLocationObserver";
   }
 
+  @Override
+  public @Nullable Map<String, Object> getConstants() {
+    Map<String, Object> compactFields = new HashMap<>();
+    compactFields.put("latitude", LocationCodec.FIELD_LATITUDE);
+    compactFields.put("longitude", LocationCodec.FIELD_LONGITUDE);
+    compactFields.put("altitude", LocationCodec.FIELD_ALTITUDE);
+    compactFields.put("accuracy", LocationCodec.FIELD_ACCURACY);
+    compactFields.put("heading", LocationCodec.FIELD_HEADING);
+    compactFields.put("speed", LocationCodec.FIELD_SPEED);
+    compactFields.put("timestamp", LocationCodec.FIELD_TIMESTAMP);
+    compactFields.put("quality", LocationCodec.FIELD_QUALITY);
+
+    Map<String, Object> constants = new HashMap<>();
+    constants.put("compactFields", compactFields);
+    constants.put("compactStride", LocationCodec.STRIDE);
+    return constants;
+  }
+
   private  LocationClientOption fromReactMap(ReadableMap map) {
     // precision might be dropped on timeout (double -> int conversion), but that's OK
     int timeout =
@@ -81,7 +322,9 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
     int distanceFilter =
             map.hasKey("distanceFilter") ? (int) map.getInt("distanceFilter") : RCT_DEFAULT_LOCATION_ACCURACY;
 
-    LocationClientOption option = baiduLocationService.getDefaultLocationClientOption();
+    // a copy: the defaults are shared with every other caller
+    LocationClientOption option =
+            new LocationClientOption(baiduLocationService.getDefaultLocationClientOption());
 
     option.setTimeOut(timeout);
     option.setScanSpan(maximumAge);
@@ -99,7 +342,10 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
    * request an update, which might take a while.
    *
    * @param options map containing optional arguments: timeout (millis), maximumAge (millis) and
-   *        highAccuracy (boolean)
+   *        highAccuracy (boolean). With progressive (boolean) set, intermediate fixes are
+   *        emitted as {@code geolocationProgress} events tagged with requestId (number) until
+   *        one is within desiredAccuracy (m); at the timeout the best of them is returned
+   *        instead of an error.
    */
   @ReactMethod
   public void getCurrentPosition(
@@ -108,37 +354,96 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
       Callback error) {
     buildBaiduApiClient();
     LocationClientOption locationOptions = fromReactMap(options);
+    boolean progressive = options.hasKey("progressive") && options.getBoolean("progressive");
+    double desiredAccuracy = options.hasKey("desiredAccuracy")
+            ? options.getDouble("desiredAccuracy")
+            : ProgressiveLocationRequest.DEFAULT_DESIRED_ACCURACY;
 
-    baiduLocationService.setLocationOption(locationOptions);
+    // a watch or consumer keeps its own option; the one-shot request rides along with it
+    baiduLocationService.setLocationOptionIfIdle(locationOptions);
 //    baiduLocationService.start();
     BDLocation location = baiduLocationService.getLastKnownLocation();
-      try {
-          if (location != null &&
-                  SystemClock.currentTimeMillis() - formatter.parse(location.getTime()+"+0800").getTime() < locationOptions.getScanSpan()) {
-            success.invoke(locationToMap(location));
-            return;
-          }
-      } catch (ParseException e) {
-          e.printStackTrace();
-      }
+    if (location != null &&
+            SystemClock.currentTimeMillis() - LocationCodec.parseTime(location) < locationOptions.getScanSpan()
+            && (!progressive || (location.hasRadius() && location.getRadius() <= desiredAccuracy))) {
+      success.invoke(locationToMap(location));
+      return;
+    }
+    if (progressive) {
+      final int requestId = options.hasKey("requestId") ? options.getInt("requestId") : 0;
+      new ProgressiveLocationRequest(
+              baiduLocationService,
+              new ProgressiveLocationRequest.Sink() {
+                @Override
+                public void onProgress(String stage, WritableMap position) {
+                  WritableMap event = Arguments.createMap();
+                  event.putInt("requestId", requestId);
+                  event.putString("stage", stage);
+                  event.putMap("position", position);
+                  getReactApplicationContext().getJSModule(RCTDeviceEventEmitter.class)
+                          .emit("geolocationProgress", event);
+                }
+              },
+              desiredAccuracy,
+              locationOptions.getTimeOut(),
+              locationOptions.getScanSpan(),
+              success,
+              error)
+            .invoke(location);
+      return;
+    }
       new SingleUpdateRequest(this.baiduLocationService, locationOptions.getTimeOut(), success, error)
             .invoke();
   }
 
   /**
    * Start listening for location updates. These will be emitted via the
-   * {@link RCTDeviceEventEmitter} as {@code geolocationDidChange} events.
+   * {@link RCTDeviceEventEmitter} as {@code geolocationDidChange} events, and fixes without a
+   * position as {@code geolocationError} events.
    *
-   * @param options map containing optional arguments: highAccuracy (boolean)
+   * @param options map containing optional arguments: highAccuracy (boolean), compact
+   *        (boolean), which emits each fix as a flat array of doubles instead of a map,
+   *        backpressure ("latest", "dropOldest" or "batch") and queueSize (number), which
+   *        hold back fixes until JS calls {@link #acknowledgeLocations}, recordHistory
+   *        (boolean) to keep every fix on the device, historyRetention (millis) and
+   *        minQuality (0-1), below which fixes are not emitted. Repeats of the previous fix
+   *        are dropped unless suppressDuplicates (boolean) is false; heartbeat (millis) emits
+   *        a {@code geolocationUnchanged} event at most that often while fixes keep being
+   *        dropped as repeats
    */
   @ReactMethod
   public void startObserving(ReadableMap options) {
     buildBaiduApiClient();
-    if(this.baiduLocationService.isStarted()) this.baiduLocationService.stop();
+    mCompactEncoding = options.hasKey("compact") && options.getBoolean("compact");
+    mDeliveryQueue.configure(
+            LocationDeliveryQueue.parseMode(
+                    options.hasKey("backpressure") ? options.getString("backpressure") : null),
+            options.hasKey("queueSize")
+                    ? options.getInt("queueSize")
+                    : LocationDeliveryQueue.DEFAULT_CAPACITY);
+    mMinQuality = options.hasKey("minQuality") ? options.getDouble("minQuality") : 0;
+    mDuplicateFilter.configure(
+            !options.hasKey("suppressDuplicates") || options.getBoolean("suppressDuplicates"),
+            options.hasKey("heartbeat") ? (long) options.getDouble("heartbeat") : 0);
+    if (!mObserving) {
+      mFixQuality.reset();
+    }
+    mRecordHistory = options.hasKey("recordHistory") && options.getBoolean("recordHistory");
+    if (mRecordHistory) {
+      final long retention = options.hasKey("historyRetention")
+              ? (long) options.getDouble("historyRetention") : LocationHistoryStore.DEFAULT_RETENTION;
+      getProcessingHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          getHistory().prune(SystemClock.currentTimeMillis() - retention);
+        }
+      });
+    }
     LocationClientOption locationOptions = fromReactMap(options);
 
-    baiduLocationService.setLocationOption(locationOptions);
-    baiduLocationService.registerListener(mLocationListener);
+    baiduLocationService.registerListener(mLocationListener, locationOptions);
+    baiduLocationService.registerListener(mPredictorListener);
+    mObserving = true;
     baiduLocationService.start();
 
   }
@@ -151,28 +456,555 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
    */
   @ReactMethod
   public void stopObserving() {
-    baiduLocationService.unregisterListener(mLocationListener);
-    baiduLocationService.stop();
+    mObserving = false;
+    mDeliveryQueue.reset();
+    // already detached if the host was destroyed while JS kept its watch
+    BaiduLocationService service = baiduLocationService;
+    if (service == null) return;
+    service.unregisterListener(mLocationListener);
+    if (!mPredictionUpdates) {
+      service.unregisterListener(mPredictorListener);
+    }
+    service.stopIfIdle();
+  }
+
+  /**
+   * Changes the quality threshold of the active watch without restarting it.
+   */
+  @ReactMethod
+  public void setMinQuality(double minQuality) {
+    mMinQuality = minQuality;
+  }
+
+  /**
+   * Tells native that JS has consumed the last {@code geolocationDidChange} event, releasing
+   * the fixes held back by the backpressure mode passed to {@link #startObserving}.
+   */
+  @ReactMethod
+  public void acknowledgeLocations() {
+    mDeliveryQueue.acknowledge(SystemClock.uptimeMillis());
+  }
+
+  /**
+   * Reports delivered and dropped fix counts, pending queue size and delivery lag (millis
+   * between a fix arriving and JS acknowledging it), plus how many repeated fixes were
+   * suppressed.
+   */
+  @ReactMethod
+  public void getDeliveryMetrics(Callback callback) {
+    WritableMap metrics = mDeliveryQueue.getMetrics();
+    metrics.putDouble("suppressed", mDuplicateFilter.getSuppressed());
+    callback.invoke(metrics);
   }
 
   private static WritableMap locationToMap(BDLocation location) {
-    WritableMap map = Arguments.createMap();
-    WritableMap coords = Arguments.createMap();
-    coords.putDouble("latitude", location.getLatitude());
-    coords.putDouble("longitude", location.getLongitude());
-    coords.putDouble("altitude", location.getAltitude());
-    coords.putDouble("accuracy", location.getRadius());
-    coords.putDouble("heading", location.getDirection());
-    coords.putDouble("speed", location.getSpeed());
-    map.putMap("coords", coords);
-    Date time = null;
-    try {
-      time = formatter.parse(location.getTime());
-    } catch (ParseException e) {
-      e.printStackTrace();
+    return LocationCodec.toMap(location);
+  }
+
+  /**
+   * Start accumulating distance, moving time and speed natively, without emitting every fix.
+   * The client keeps running with the options of an active watch, if any.
+   *
+   * @param options map containing optional arguments: maxAccuracy (m), minStep (m),
+   *        movingSpeed (m/s), milestone (m) for {@code odometerMilestone} events, plus the
+   *        location options accepted by {@link #startObserving}
+   */
+  @ReactMethod
+  public void startOdometer(ReadableMap options) {
+    mOdometer.configure(
+            options.hasKey("maxAccuracy")
+                    ? options.getDouble("maxAccuracy") : TripOdometer.DEFAULT_MAX_ACCURACY,
+            options.hasKey("minStep")
+                    ? options.getDouble("minStep") : TripOdometer.DEFAULT_MIN_STEP,
+            options.hasKey("movingSpeed")
+                    ? options.getDouble("movingSpeed") : TripOdometer.DEFAULT_MOVING_SPEED,
+            options.hasKey("milestone") ? options.getDouble("milestone") : 0);
+    attachConsumer(mOdometerListener, options);
+  }
+
+  /**
+   * Stop feeding the odometer. The accumulated totals are kept until {@link #resetOdometer}.
+   */
+  @ReactMethod
+  public void stopOdometer() {
+    detachConsumer(mOdometerListener);
+  }
+
+  @ReactMethod
+  public void getOdometer(Callback callback) {
+    callback.invoke(mOdometer.toMap());
+  }
+
+  @ReactMethod
+  public void resetOdometer() {
+    mOdometer.reset();
+  }
+
+  /**
+   * Predict the position at a given time from the latest fixes, interpolating between them
+   * or extrapolating along speed and heading. The result carries an {@code accuracy} error
+   * bound in meters and an {@code extrapolated} flag, or is null before the first fix.
+   *
+   * @param timestamp epoch millis to predict for, or 0 for now
+   */
+  @ReactMethod
+  public void predictPosition(double timestamp, Callback callback) {
+    long time = timestamp > 0 ? (long) timestamp : SystemClock.currentTimeMillis();
+    callback.invoke(mPredictor.predict(time));
+  }
+
+  /**
+   * Start emitting {@code geolocationPrediction} events aligned to display frames.
+   *
+   * @param options map containing optional arguments: interval (millis, default every
+   *        frame), plus the location options accepted by {@link #startObserving}
+   */
+  @ReactMethod
+  public void startPredictionUpdates(ReadableMap options) {
+    mPredictionInterval = options.hasKey("interval") ? (long) options.getDouble("interval") : 0;
+    attachConsumer(mPredictorListener, options);
+    if (mPredictionUpdates) return;
+    mPredictionUpdates = true;
+    UiThreadUtil.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        mLastPredictionFrame = 0;
+        Choreographer.getInstance().postFrameCallback(mPredictionFrameCallback);
+      }
+    });
+  }
+
+  @ReactMethod
+  public void stopPredictionUpdates() {
+    stopPredictionFrames();
+    if (!mObserving) {
+      detachConsumer(mPredictorListener);
     }
-    map.putDouble("timestamp", time!=null?time.getTime():0);
-    return map;
+  }
+
+  private void stopPredictionFrames() {
+    mPredictionUpdates = false;
+    UiThreadUtil.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        Choreographer.getInstance().removeFrameCallback(mPredictionFrameCallback);
+      }
+    });
+  }
+
+  /**
+   * Keep tracking in a foreground service while the app is in the background. Fixes are
+   * recorded in the on-device history and delivered to JS as {@code geolocationBatch} events
+   * only when a batch is due. The scan interval adapts to the device's speed.
+   *
+   * @param options map containing optional arguments: batchSize (number), batchInterval
+   *        (millis), compact (boolean) batches, historyRetention (millis), notificationTitle
+   *        and notificationText
+   */
+  @ReactMethod
+  public void startBackgroundTracking(ReadableMap options) {
+    buildBaiduApiClient();
+    mCompactBatches = options.hasKey("compact") && options.getBoolean("compact");
+    mEngine.addBatchListener(mBatchListener);
+
+    Intent intent = new Intent(getReactApplicationContext(), LocationTrackingService.class);
+    intent.putExtra(LocationTrackingService.EXTRA_BATCH_SIZE, options.hasKey("batchSize")
+            ? options.getInt("batchSize") : BackgroundTracker.DEFAULT_BATCH_SIZE);
+    intent.putExtra(LocationTrackingService.EXTRA_BATCH_INTERVAL, options.hasKey("batchInterval")
+            ? (long) options.getDouble("batchInterval") : BackgroundTracker.DEFAULT_BATCH_INTERVAL);
+    intent.putExtra(LocationTrackingService.EXTRA_HISTORY_RETENTION,
+            options.hasKey("historyRetention")
+                    ? (long) options.getDouble("historyRetention")
+                    : LocationHistoryStore.DEFAULT_RETENTION);
+    if (options.hasKey("notificationTitle")) {
+      intent.putExtra(LocationTrackingService.EXTRA_TITLE, options.getString("notificationTitle"));
+    }
+    if (options.hasKey("notificationText")) {
+      intent.putExtra(LocationTrackingService.EXTRA_TEXT, options.getString("notificationText"));
+    }
+    getReactApplicationContext().startService(intent);
+  }
+
+  @ReactMethod
+  public void stopBackgroundTracking() {
+    LocationEngine engine = mEngine;
+    if (engine != null) {
+      engine.removeBatchListener(mBatchListener);
+    }
+    getReactApplicationContext().stopService(
+            new Intent(getReactApplicationContext(), LocationTrackingService.class));
+  }
+
+  /**
+   * Start splitting the fix stream into stops and trips natively. Emits {@code stopStart},
+   * {@code stopEnd} and {@code tripSummary} events instead of individual fixes.
+   *
+   * @param options map containing optional arguments: radius (m) and minDuration (millis) of
+   *        a stop, maxAccuracy (m) of the fixes considered, plus the location options
+   *        accepted by {@link #startObserving}
+   */
+  @ReactMethod
+  public void startSegmentation(ReadableMap options) {
+    mSegmenter.configure(
+            options.hasKey("radius")
+                    ? options.getDouble("radius") : StaySegmenter.DEFAULT_RADIUS,
+            options.hasKey("minDuration")
+                    ? (long) options.getDouble("minDuration") : StaySegmenter.DEFAULT_MIN_DURATION,
+            options.hasKey("maxAccuracy")
+                    ? options.getDouble("maxAccuracy") : StaySegmenter.DEFAULT_MAX_ACCURACY);
+    attachConsumer(mSegmentationListener, options);
+  }
+
+  @ReactMethod
+  public void stopSegmentation() {
+    detachConsumer(mSegmentationListener);
+    mSegmenter.reset();
+  }
+
+  /**
+   * Start accumulating dwell time and visit counts per geohash cell.
+   *
+   * @param options map containing optional arguments: precision (geohash characters),
+   *        maxCells (number) kept before cold cells are evicted, maxGap (millis) between fixes
+   *        still counted as dwell, maxAccuracy (m), plus the location options accepted by
+   *        {@link #startObserving}
+   */
+  @ReactMethod
+  public void startDwellAggregation(ReadableMap options) {
+    mDwellAggregator.configure(
+            options.hasKey("precision")
+                    ? options.getInt("precision") : DwellAggregator.DEFAULT_PRECISION,
+            options.hasKey("maxCells")
+                    ? options.getInt("maxCells") : DwellAggregator.DEFAULT_MAX_CELLS,
+            options.hasKey("maxGap")
+                    ? (long) options.getDouble("maxGap") : DwellAggregator.DEFAULT_MAX_GAP,
+            options.hasKey("maxAccuracy")
+                    ? options.getDouble("maxAccuracy") : DwellAggregator.DEFAULT_MAX_ACCURACY);
+    attachConsumer(mDwellListener, options);
+  }
+
+  @ReactMethod
+  public void stopDwellAggregation() {
+    detachConsumer(mDwellListener);
+  }
+
+  /**
+   * Reports the cells with the most dwell time: geohash, center latitude and longitude,
+   * dwell (millis), visits and lastSeen, plus trackedCells and evictedCells counts.
+   */
+  @ReactMethod
+  public void getTopDwellCells(int count, Callback callback) {
+    callback.invoke(mDwellAggregator.top(count));
+  }
+
+  @ReactMethod
+  public void resetDwellAggregation() {
+    mDwellAggregator.reset();
+  }
+
+  /**
+   * Start uploading fixes natively in gzipped batches. Batches are kept on disk until the
+   * server accepts them, including across app restarts.
+   *
+   * @param config map containing url (string), and optionally headers (map of strings),
+   *        maxBatchSize (number), maxBatchAge, baseRetryDelay and maxRetryDelay (millis),
+   *        maxQueueDepth (batches) and maxQueueAge (millis), beyond which the oldest queued
+   *        batches are dropped, plus the location options accepted by {@link #startObserving}
+   */
+  @ReactMethod
+  public void startUploader(ReadableMap config) {
+    Map<String, String> headers = new HashMap<>();
+    if (config.hasKey("headers")) {
+      ReadableMap map = config.getMap("headers");
+      ReadableMapKeySetIterator iterator = map.keySetIterator();
+      while (iterator.hasNextKey()) {
+        String key = iterator.nextKey();
+        headers.put(key, map.getString(key));
+      }
+    }
+    getUploader().configure(
+            config.getString("url"),
+            headers,
+            config.hasKey("maxBatchSize")
+                    ? config.getInt("maxBatchSize") : LocationUploader.DEFAULT_MAX_BATCH_SIZE,
+            config.hasKey("maxBatchAge")
+                    ? (long) config.getDouble("maxBatchAge") : LocationUploader.DEFAULT_MAX_BATCH_AGE,
+            config.hasKey("baseRetryDelay")
+                    ? (long) config.getDouble("baseRetryDelay")
+                    : LocationUploader.DEFAULT_BASE_RETRY_DELAY,
+            config.hasKey("maxRetryDelay")
+                    ? (long) config.getDouble("maxRetryDelay")
+                    : LocationUploader.DEFAULT_MAX_RETRY_DELAY,
+            config.hasKey("maxQueueDepth")
+                    ? config.getInt("maxQueueDepth") : UploadQueue.DEFAULT_MAX_DEPTH,
+            config.hasKey("maxQueueAge")
+                    ? (long) config.getDouble("maxQueueAge") : UploadQueue.DEFAULT_MAX_AGE);
+    attachConsumer(mUploadListener, config);
+  }
+
+  /**
+   * Stop feeding the uploader. The open batch is sealed; queued batches keep being sent.
+   */
+  @ReactMethod
+  public void stopUploader() {
+    detachConsumer(mUploadListener);
+    getUploader().flush();
+  }
+
+  /**
+   * Reports queueDepth (batches on disk), pendingFixes (open batch), uploaded and failed
+   * counts, lastDeliveryLag and oldestQueuedAge (millis).
+   */
+  @ReactMethod
+  public void getUploaderMetrics(Callback callback) {
+    getUploader().getMetrics(callback);
+  }
+
+  private void recordHistory(final BDLocation location) {
+    getProcessingHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        getHistory().record(location, LocationCodec.parseTime(location));
+      }
+    });
+  }
+
+  private interface HistoryQuery {
+    WritableMap run(LocationHistoryStore history);
+  }
+
+  private void queryHistory(final HistoryQuery query, final Callback success,
+                            final Callback error) {
+    getProcessingHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        WritableMap page;
+        try {
+          page = query.run(getHistory());
+        } catch (RuntimeException e) {
+          error.invoke("Location history query failed: " + e.getMessage());
+          return;
+        }
+        success.invoke(page);
+      }
+    });
+  }
+
+  private static int pageSize(ReadableMap query) {
+    return query.hasKey("limit") ? query.getInt("limit") : LocationHistoryStore.DEFAULT_PAGE_SIZE;
+  }
+
+  private static @Nullable String pageCursor(ReadableMap query) {
+    return query.hasKey("cursor") && !query.isNull("cursor") ? query.getString("cursor") : null;
+  }
+
+  /**
+   * Recorded fixes in a time range, oldest first.
+   *
+   * @param query map containing from and to (epoch millis, optional), limit (number) and the
+   *        cursor returned with the previous page
+   */
+  @ReactMethod
+  public void queryHistoryByTime(final ReadableMap query, Callback success, Callback error) {
+    queryHistory(new HistoryQuery() {
+      @Override
+      public WritableMap run(LocationHistoryStore history) {
+        return history.queryByTime(
+                query.hasKey("from") ? (long) query.getDouble("from") : 0,
+                query.hasKey("to") ? (long) query.getDouble("to") : Long.MAX_VALUE,
+                pageSize(query), pageCursor(query));
+      }
+    }, success, error);
+  }
+
+  /**
+   * Recorded fixes inside a bounding box, oldest first.
+   *
+   * @param query map containing minLatitude, minLongitude, maxLatitude, maxLongitude, and
+   *        optionally from, to, limit and cursor as for {@link #queryHistoryByTime}
+   */
+  @ReactMethod
+  public void queryHistoryInBox(final ReadableMap query, Callback success, Callback error) {
+    queryHistory(new HistoryQuery() {
+      @Override
+      public WritableMap run(LocationHistoryStore history) {
+        return history.queryInBox(
+                query.getDouble("minLatitude"), query.getDouble("minLongitude"),
+                query.getDouble("maxLatitude"), query.getDouble("maxLongitude"),
+                query.hasKey("from") ? (long) query.getDouble("from") : 0,
+                query.hasKey("to") ? (long) query.getDouble("to") : Long.MAX_VALUE,
+                pageSize(query), pageCursor(query));
+      }
+    }, success, error);
+  }
+
+  /**
+   * Recorded fixes nearest to a point, each with its distance in meters.
+   *
+   * @param query map containing latitude, longitude, and optionally maxDistance (m), limit
+   *        and cursor
+   */
+  @ReactMethod
+  public void queryHistoryNearest(final ReadableMap query, Callback success, Callback error) {
+    queryHistory(new HistoryQuery() {
+      @Override
+      public WritableMap run(LocationHistoryStore history) {
+        return history.queryNearest(
+                query.getDouble("latitude"), query.getDouble("longitude"),
+                pageSize(query),
+                query.hasKey("maxDistance")
+                        ? query.getDouble("maxDistance")
+                        : LocationHistoryStore.DEFAULT_NEAREST_MAX_DISTANCE,
+                pageCursor(query));
+      }
+    }, success, error);
+  }
+
+  @ReactMethod
+  public void clearHistory() {
+    getProcessingHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        getHistory().clear();
+      }
+    });
+  }
+
+  private interface GeometryOp {
+    WritableMap run(BDLocation origin);
+  }
+
+  /**
+   * Runs {@code op} against the latest fix on the processing thread.
+   */
+  private void runGeometry(final GeometryOp op, final Callback success, final Callback error) {
+    buildBaiduApiClient();
+    final BaiduLocationService service = baiduLocationService;
+    getProcessingHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        BDLocation origin = service.getLastKnownLocation();
+        if (origin == null || !LocationCodec.hasPosition(origin)) {
+          error.invoke("No current location");
+          return;
+        }
+        WritableMap result;
+        try {
+          result = op.run(origin);
+        } catch (RuntimeException e) {
+          // e.g. a null or non-number element in the packed points
+          error.invoke("Geometry query failed: " + e.getMessage());
+          return;
+        }
+        result.putMap("origin", locationToMap(origin));
+        success.invoke(result);
+      }
+    });
+  }
+
+  private static double[] unpack(ReadableArray points) {
+    double[] packed = new double[points.size() & ~1];
+    for (int i = 0; i < packed.length; i++) {
+      packed[i] = points.getDouble(i);
+    }
+    return packed;
+  }
+
+  private static WritableArray toArray(double[] values, int count) {
+    WritableArray array = Arguments.createArray();
+    for (int i = 0; i < count; i++) {
+      array.pushDouble(values[i]);
+    }
+    return array;
+  }
+
+  /**
+   * Distances in meters from the current fix to every point.
+   *
+   * @param points packed as [lat0, lon0, lat1, lon1, ...]
+   */
+  @ReactMethod
+  public void measureDistances(final ReadableArray points, Callback success, Callback error) {
+    runGeometry(new GeometryOp() {
+      @Override
+      public WritableMap run(BDLocation origin) {
+        double[] packed = unpack(points);
+        double[] distances = new double[GeoBatch.count(packed)];
+        GeoBatch.distances(origin.getLatitude(), origin.getLongitude(), packed, distances);
+        WritableMap result = Arguments.createMap();
+        result.putArray("distances", toArray(distances, distances.length));
+        return result;
+      }
+    }, success, error);
+  }
+
+  /**
+   * Initial bearings in degrees from the current fix to every point.
+   *
+   * @param points packed as for {@link #measureDistances}
+   */
+  @ReactMethod
+  public void measureBearings(final ReadableArray points, Callback success, Callback error) {
+    runGeometry(new GeometryOp() {
+      @Override
+      public WritableMap run(BDLocation origin) {
+        double[] packed = unpack(points);
+        double[] bearings = new double[GeoBatch.count(packed)];
+        GeoBatch.bearings(origin.getLatitude(), origin.getLongitude(), packed, bearings);
+        WritableMap result = Arguments.createMap();
+        result.putArray("bearings", toArray(bearings, bearings.length));
+        return result;
+      }
+    }, success, error);
+  }
+
+  /**
+   * The {@code count} points nearest to the current fix, nearest first, as parallel indices
+   * and distances arrays.
+   *
+   * @param points packed as for {@link #measureDistances}
+   */
+  @ReactMethod
+  public void findNearest(final ReadableArray points, final int count, Callback success,
+                          Callback error) {
+    runGeometry(new GeometryOp() {
+      @Override
+      public WritableMap run(BDLocation origin) {
+        double[] packed = unpack(points);
+        int k = Math.max(0, Math.min(count, GeoBatch.count(packed)));
+        int[] indices = new int[k];
+        double[] distances = new double[k];
+        int found = GeoBatch.nearest(origin.getLatitude(), origin.getLongitude(), packed,
+                indices, distances);
+        WritableArray indexArray = Arguments.createArray();
+        for (int i = 0; i < found; i++) {
+          indexArray.pushInt(indices[i]);
+        }
+        WritableMap result = Arguments.createMap();
+        result.putArray("indices", indexArray);
+        result.putArray("distances", toArray(distances, found));
+        return result;
+      }
+    }, success, error);
+  }
+
+  /**
+   * Whether the current fix lies inside the polygon.
+   *
+   * @param polygon vertices packed as for {@link #measureDistances}
+   */
+  @ReactMethod
+  public void containsCurrentPosition(final ReadableArray polygon, Callback success,
+                                      Callback error) {
+    runGeometry(new GeometryOp() {
+      @Override
+      public WritableMap run(BDLocation origin) {
+        WritableMap result = Arguments.createMap();
+        result.putBoolean("inside",
+                GeoBatch.contains(unpack(polygon), origin.getLatitude(), origin.getLongitude()));
+        return result;
+      }
+    }, success, error);
   }
 
   private void emitError(String error) {
@@ -204,6 +1036,7 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
           if (!mTriggered) {
             mError.invoke("Location request timed out");
             mbaiduLocationService.unregisterListener(mLocationListener);
+            mbaiduLocationService.stopIfIdle();
             mTriggered = true;
           }
         }
@@ -212,13 +1045,20 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
     private final BDLocationListener mLocationListener = new BDLocationListener() {
         @Override
         public void onReceiveLocation(BDLocation bdLocation) {
+            if (bdLocation == null) {
+                return;
+            }
             synchronized (SingleUpdateRequest.this) {
                 if (!mTriggered) {
-                    mSuccess.invoke(locationToMap(bdLocation));
                     mHandler.removeCallbacks(mTimeoutRunnable);
                     mTriggered = true;
                     mbaiduLocationService.unregisterListener(mLocationListener);
-                    mbaiduLocationService.stop();
+                    mbaiduLocationService.stopIfIdle();
+                    if (LocationCodec.hasPosition(bdLocation)) {
+                        mSuccess.invoke(locationToMap(bdLocation));
+                    } else {
+                        mError.invoke(LocationCodec.describeFailure(bdLocation));
+                    }
                 }
             }
         }
@@ -245,21 +1085,59 @@ public class AndroidGeolocationModule extends ReactContextBaseJavaModule impleme
   }
 
   @Override
-  public void onHostResume() {
+  public void onCatalystInstanceDestroy() {
+    // the frame callback re-posts itself and would outlive the instance
+    stopPredictionFrames();
+    detachFromEngine();
+    synchronized (this) {
+      if (mUploader != null) {
+        mUploader.quit();
+        mUploader = null;
+      }
+      if (mProcessingThread != null) {
+        final HandlerThread thread = mProcessingThread;
+        mProcessingHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            thread.quit();
+          }
+        });
+        mProcessingThread = null;
+        mProcessingHandler = null;
+      }
+    }
+  }
 
-    baiduLocationService.start();
+  @Override
+  public void onHostResume() {
+    if (baiduLocationService == null && LocationTrackingService.isRunning()) {
+      buildBaiduApiClient();
+    }
+    BaiduLocationService service = baiduLocationService;
+    if (service != null) {
+      if (mObserving) {
+        service.registerListener(mLocationListener);
+      }
+      service.startIfSubscribed();
+    }
   }
 
   @Override
   public void onHostPause() {
-
-    baiduLocationService.stop();
+    BaiduLocationService service = baiduLocationService;
+    if (service == null) return;
+    if (LocationTrackingService.isRunning()) {
+      // the tracking service keeps the client running and hands JS batches; the watch would
+      // wake JS for every background fix
+      service.unregisterListener(mLocationListener);
+    } else {
+      service.stop();
+    }
   }
 
   @Override
   public void onHostDestroy() {
-
-    baiduLocationService.stop();
-    baiduLocationService.unregisterListener(mLocationListener);
+    // the client was stopped in onHostPause; the subscriptions stay for onHostResume, since
+    // JS still considers its watches active
   }
 }
@@ -0,0 +1,158 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batching and interval policy for background tracking, kept free of Android services so it
+ * can be driven by a fake provider and a simulated clock.
+ *
+ * Fixes are held until {@code batchSize} of them are pending or the oldest has waited
+ * {@code batchInterval} millis; only then is the sink woken with the whole batch. The scan
+ * interval follows the speed tier the device is in: stationary, slow or fast. A tier change
+ * needs two consecutive fixes agreeing, so one noisy speed doesn't restart the provider.
+ */
+final class BackgroundTracker {
+
+  static final int DEFAULT_BATCH_SIZE = 50;
+  static final long DEFAULT_BATCH_INTERVAL = 15 * 60 * 1000;
+
+  static final int TIER_STATIONARY = 0;
+  static final int TIER_SLOW = 1;
+  static final int TIER_FAST = 2;
+  // scan spans per tier, millis
+  static final int[] TIER_INTERVALS = {60 * 1000, 15 * 1000, 5 * 1000};
+  // upper speed bound of the stationary and slow tiers, m/s
+  private static final double STATIONARY_SPEED = 0.5;
+  private static final double SLOW_SPEED = 3;
+
+  interface Clock {
+    long now();
+  }
+
+  interface Sink {
+    void onBatch(List<BDLocation> fixes);
+  }
+
+  interface IntervalControl {
+    void setInterval(int millis);
+  }
+
+  private final Clock mClock;
+  private final Sink mSink;
+  private final IntervalControl mIntervalControl;
+
+  private int mBatchSize = DEFAULT_BATCH_SIZE;
+  private long mBatchInterval = DEFAULT_BATCH_INTERVAL;
+  private final List<BDLocation> mPending = new ArrayList<>();
+  private long mFirstPendingAt;
+
+  private int mTier = -1;
+  private int mCandidateTier = -1;
+  private boolean mHasLast;
+  private double mLastLatitude;
+  private double mLastLongitude;
+  private long mLastTime;
+
+  BackgroundTracker(Clock clock, Sink sink, IntervalControl intervalControl) {
+    mClock = clock;
+    mSink = sink;
+    mIntervalControl = intervalControl;
+  }
+
+  synchronized void configure(int batchSize, long batchInterval) {
+    mBatchSize = Math.max(1, batchSize);
+    mBatchInterval = batchInterval;
+  }
+
+  void offer(BDLocation location) {
+    if (!LocationCodec.hasPosition(location)) return;
+    long now = mClock.now();
+    List<BDLocation> batch = null;
+    int interval = -1;
+    synchronized (this) {
+      int tier = updateTier(location, now);
+      if (tier >= 0) interval = TIER_INTERVALS[tier];
+      if (mPending.isEmpty()) mFirstPendingAt = now;
+      mPending.add(location);
+      if (mPending.size() >= mBatchSize || now - mFirstPendingAt >= mBatchInterval) {
+        batch = drain();
+      }
+    }
+    if (interval >= 0) mIntervalControl.setInterval(interval);
+    if (batch != null) mSink.onBatch(batch);
+  }
+
+  /**
+   * Flushes the pending batch if it has waited long enough. Call periodically so a batch is
+   * delivered on time even when no further fix arrives.
+   */
+  void tick() {
+    List<BDLocation> batch = null;
+    synchronized (this) {
+      if (!mPending.isEmpty() && mClock.now() - mFirstPendingAt >= mBatchInterval) {
+        batch = drain();
+      }
+    }
+    if (batch != null) mSink.onBatch(batch);
+  }
+
+  void flush() {
+    List<BDLocation> batch;
+    synchronized (this) {
+      if (mPending.isEmpty()) return;
+      batch = drain();
+    }
+    mSink.onBatch(batch);
+  }
+
+  synchronized int getTier() {
+    return mTier;
+  }
+
+  synchronized long getBatchInterval() {
+    return mBatchInterval;
+  }
+
+  private List<BDLocation> drain() {
+    List<BDLocation> batch = new ArrayList<>(mPending);
+    mPending.clear();
+    return batch;
+  }
+
+  /**
+   * @return the new tier when it changed, -1 otherwise
+   */
+  private int updateTier(BDLocation location, long now) {
+    double speed;
+    if (location.hasSpeed()) {
+      // SDK speed is km/h
+      speed = location.getSpeed() / 3.6;
+    } else if (mHasLast && now > mLastTime) {
+      speed = GeoMath.distance(mLastLatitude, mLastLongitude,
+              location.getLatitude(), location.getLongitude()) * 1000 / (now - mLastTime);
+    } else {
+      speed = 0;
+    }
+    mHasLast = true;
+    mLastLatitude = location.getLatitude();
+    mLastLongitude = location.getLongitude();
+    mLastTime = now;
+
+    int tier = speed < STATIONARY_SPEED ? TIER_STATIONARY
+            : speed < SLOW_SPEED ? TIER_SLOW : TIER_FAST;
+    if (tier == mTier) {
+      mCandidateTier = -1;
+      return -1;
+    }
+    if (mTier >= 0 && tier != mCandidateTier) {
+      mCandidateTier = tier;
+      return -1;
+    }
+    mTier = tier;
+    mCandidateTier = -1;
+    return tier;
+  }
+}
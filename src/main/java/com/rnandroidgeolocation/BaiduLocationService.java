@@ -8,6 +8,9 @@ import com.baidu.location.LocationClient;
 import com.baidu.location.LocationClientOption;
 import com.baidu.location.LocationClientOption.LocationMode;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * 
  * @author baidu
@@ -19,9 +22,21 @@ public class BaiduLocationService {
 	public final static String CoorType_BD09LL= "bd09ll";
 	public final static String CoorType_BD09MC= "bd09";
 
+	/***
+	 * Client lifecycle. STARTING, RECONFIGURING and STOPPING are owned by the one thread that
+	 * won the compare-and-set into them; every other caller only records its intent.
+	 */
+	public enum State { STOPPED, STARTING, RUNNING, RECONFIGURING, STOPPING }
+
 	private LocationClient client = null;
-	private LocationClientOption mOption,DIYoption;
+	private LocationClientOption mOption;
+	private volatile LocationClientOption DIYoption;
 	private Object  objLock = new Object();
+	private final LocationDispatcher dispatcher = new LocationDispatcher();
+	private final AtomicReference<State> state = new AtomicReference<State>(State.STOPPED);
+	private final AtomicBoolean wantRunning = new AtomicBoolean(false);
+	private final AtomicReference<LocationClientOption> pendingOption =
+			new AtomicReference<LocationClientOption>();
 
 	/***
 	 * 
@@ -33,12 +48,13 @@ public class BaiduLocationService {
 			if(client == null){
 				client = new LocationClient(locationContext);
 				client.setLocOption(getDefaultLocationClientOption());
+				client.registerLocationListener(dispatcher);
 			}
 		}
 	}
 	
 	/***
-	 * 
+	 * Subscribes to the internal dispatcher; the SDK only ever sees one listener.
 	 * @param listener
 	 * @return
 	 */
@@ -46,34 +62,89 @@ public class BaiduLocationService {
 	public boolean registerListener(BDLocationListener listener){
 		boolean isSuccess = false;
 		if(listener != null){
-			client.registerLocationListener(listener);
+			dispatcher.subscribe(listener);
 			isSuccess = true;
 		}
 		return  isSuccess;
 	}
 	
+	/***
+	 * Applies the option and subscribes the listener in one step, so no
+	 * {@link #setLocationOptionIfIdle} caller can slip in between and find nobody subscribed.
+	 * @param listener
+	 * @param option
+	 */
+	public void registerListener(BDLocationListener listener, LocationClientOption option){
+		synchronized (objLock) {
+			applyOption(option);
+			dispatcher.subscribe(listener);
+		}
+		reconcile();
+	}
+
+	/***
+	 * Subscribes the listener, applying the option only if nobody else was subscribed.
+	 * @param listener
+	 * @param option
+	 * @return whether the option was applied
+	 */
+	public boolean registerListenerIfIdle(BDLocationListener listener, LocationClientOption option){
+		boolean applied;
+		synchronized (objLock) {
+			applied = !dispatcher.hasSubscribers();
+			if(applied) applyOption(option);
+			dispatcher.subscribe(listener);
+		}
+		reconcile();
+		return applied;
+	}
+
 	public void unregisterListener(BDLocationListener listener){
 		if(listener != null){
-			client.unRegisterLocationListener(listener);
+			dispatcher.unsubscribe(listener);
 		}
 	}
 	
 	/***
-	 * 
+	 * Applies the option, restarting the client if it is running. Options set while another
+	 * transition is in flight are coalesced and applied once that transition finishes.
 	 * @param option
 	 * @return isSuccessSetOption
 	 */
 	public boolean setLocationOption(LocationClientOption option){
 		boolean isSuccess = false;
 		if(option != null){
-			if(client.isStarted())
-				client.stop();
-			DIYoption = option;
-			client.setLocOption(option);
+			synchronized (objLock) {
+				applyOption(option);
+			}
+			reconcile();
 			isSuccess = true;
 		}
 		return isSuccess;
 	}
+
+	/***
+	 * Applies the option only if no listener is subscribed. Whoever is subscribed owns the
+	 * option, whatever state the client is in: a watch keeps its option while the client
+	 * starts, reconfigures or is stopped for the app being paused.
+	 * @param option
+	 * @return whether the option was applied
+	 */
+	public boolean setLocationOptionIfIdle(LocationClientOption option){
+		if(option == null) return false;
+		synchronized (objLock) {
+			if(dispatcher.hasSubscribers()) return false;
+			applyOption(option);
+		}
+		reconcile();
+		return true;
+	}
+
+	// the transition itself happens in reconcile, outside the lock
+	private void applyOption(LocationClientOption option){
+		DIYoption = option;
+		pendingOption.set(option);
+	}
 	
 	public LocationClientOption getOption(){
 		return DIYoption;
@@ -103,21 +174,81 @@ public class BaiduLocationService {
 	}
 	
 	public void start(){
-		synchronized (objLock) {
-			if(client != null && !client.isStarted()){
-				client.start();
-			}
-		}
+		wantRunning.set(true);
+		reconcile();
 	}
 	public void stop(){
-		synchronized (objLock) {
-			if(client != null && client.isStarted()){
-				client.stop();
+		wantRunning.set(false);
+		reconcile();
+	}
+
+	/***
+	 * Drives the client towards the requested state. Whoever wins a transition loops again
+	 * after finishing it, so requests made meanwhile are never lost, while duplicate start
+	 * or stop calls fall through without touching the client.
+	 */
+	private void reconcile(){
+		while(true){
+			State current = state.get();
+			if(current == State.STOPPED || current == State.RUNNING){
+				boolean running = current == State.RUNNING;
+				if(pendingOption.get() != null){
+					if(state.compareAndSet(current, State.RECONFIGURING)){
+						try{
+							LocationClientOption option = pendingOption.getAndSet(null);
+							if(running) client.stop();
+							client.setLocOption(option);
+							if(running) client.start();
+						}finally{
+							state.set(current);
+						}
+					}
+				}else if(wantRunning.get() != running){
+					State transition = running ? State.STOPPING : State.STARTING;
+					if(state.compareAndSet(current, transition)){
+						// if the client throws (e.g. SecurityException without the location
+						// permission) the state must not stay stuck in the transition
+						State next = current;
+						try{
+							if(running) client.stop(); else client.start();
+							next = running ? State.STOPPED : State.RUNNING;
+						}finally{
+							state.set(next);
+						}
+					}
+				}else{
+					return;
+				}
+			}else{
+				// another thread owns the transition and will reconcile when it is done
+				return;
 			}
 		}
 	}
 
+	/***
+	 * Starts the client if a listener is waiting for fixes.
+	 */
+	public void startIfSubscribed(){
+		if(dispatcher.hasSubscribers()){
+			start();
+		}
+	}
+
+	/***
+	 * Stops the client unless a listener is still subscribed.
+	 */
+	public void stopIfIdle(){
+		if(!dispatcher.hasSubscribers()){
+			stop();
+		}
+	}
+
 	public BDLocation getLastKnownLocation(){
+		BDLocation cached = dispatcher.getLastFix();
+		if(cached != null){
+			return cached;
+		}
 		if(client != null){
 			return client.getLastKnownLocation();
 		}
@@ -125,7 +256,11 @@ public class BaiduLocationService {
 	}
 
 	public boolean isStarted(){
-		return client.isStarted();
+		return state.get() == State.RUNNING;
+	}
+
+	public State getState(){
+		return state.get();
 	}
 	
 }
@@ -0,0 +1,87 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+
+/**
+ * Recognises the SDK re-delivering the same result. While the position hasn't changed the SDK
+ * keeps handing back its cached fix every scan span, with the same server time; such a fix is
+ * identified by its time string, coordinates, radius and loc type.
+ *
+ * With a heartbeat set, a suppressed repeat is let through as a tick once that many millis
+ * have passed since anything was last emitted, so consumers can still tell the watch is alive.
+ */
+final class DuplicateFixFilter {
+
+  /** The fix is new and should be emitted. */
+  static final int EMIT = 0;
+  /** The fix repeats the previous one and should be dropped. */
+  static final int SUPPRESS = 1;
+  /** The fix repeats the previous one, but a heartbeat tick is due. */
+  static final int HEARTBEAT = 2;
+
+  private boolean mEnabled = true;
+  private long mHeartbeat;
+
+  private boolean mHasLast;
+  private String mLastTime;
+  private double mLastLatitude;
+  private double mLastLongitude;
+  private float mLastRadius;
+  private int mLastType;
+  private long mLastSignalAt;
+  private int mRepeats;
+  private long mSuppressed;
+
+  /**
+   * @param heartbeat millis between ticks while fixes repeat, or 0 for none
+   */
+  synchronized void configure(boolean enabled, long heartbeat) {
+    mEnabled = enabled;
+    mHeartbeat = heartbeat;
+    mHasLast = false;
+    mRepeats = 0;
+  }
+
+  synchronized int check(BDLocation location, long now) {
+    if (!mEnabled) return EMIT;
+    if (!isRepeat(location)) {
+      mHasLast = true;
+      mLastTime = location.getTime();
+      mLastLatitude = location.getLatitude();
+      mLastLongitude = location.getLongitude();
+      mLastRadius = location.getRadius();
+      mLastType = location.getLocType();
+      mLastSignalAt = now;
+      mRepeats = 0;
+      return EMIT;
+    }
+    mRepeats++;
+    mSuppressed++;
+    if (mHeartbeat > 0 && now - mLastSignalAt >= mHeartbeat) {
+      mLastSignalAt = now;
+      return HEARTBEAT;
+    }
+    return SUPPRESS;
+  }
+
+  /**
+   * @return how many repeats in a row have been seen since the last new fix
+   */
+  synchronized int getRepeats() {
+    return mRepeats;
+  }
+
+  synchronized long getSuppressed() {
+    return mSuppressed;
+  }
+
+  private boolean isRepeat(BDLocation location) {
+    // a fix without server time can't be told apart from a genuinely new one
+    return mHasLast && mLastTime != null
+            && mLastTime.equals(location.getTime())
+            && mLastLatitude == location.getLatitude()
+            && mLastLongitude == location.getLongitude()
+            && mLastRadius == location.getRadius()
+            && mLastType == location.getLocType();
+  }
+}
@@ -0,0 +1,219 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Accumulates dwell time and visit counts per geohash cell.
+ *
+ * The time between two consecutive fixes is credited to the cell of the earlier one, unless
+ * the gap exceeds {@code maxGap}. Entering a cell different from the previous fix's cell counts
+ * as a visit. Cells live in an open-addressing table keyed by the packed geohash, with parallel
+ * primitive arrays for the values, so feeding a fix allocates nothing outside of eviction.
+ * When the table holds {@code maxCells} cells the least recently seen eighth is evicted.
+ */
+final class DwellAggregator {
+
+  static final int DEFAULT_PRECISION = 7;
+  static final int DEFAULT_MAX_CELLS = 4096;
+  static final long DEFAULT_MAX_GAP = 5 * 60 * 1000;
+  static final double DEFAULT_MAX_ACCURACY = 100;
+
+  private static final long EMPTY = -1;
+
+  private int mBits = DEFAULT_PRECISION * 5;
+  private int mMaxCells = DEFAULT_MAX_CELLS;
+  private long mMaxGap = DEFAULT_MAX_GAP;
+  private double mMaxAccuracy = DEFAULT_MAX_ACCURACY;
+
+  private long[] mKeys;
+  private double[] mDwell;
+  private int[] mVisits;
+  private long[] mLastSeen;
+  private int mSize;
+  private long mEvicted;
+
+  private boolean mHasPrevious;
+  private long mPreviousCell;
+  private long mPreviousTime;
+
+  private final double[] mCenter = new double[2];
+
+  DwellAggregator() {
+    allocate(DEFAULT_MAX_CELLS);
+  }
+
+  /**
+   * @param precision geohash length in characters, 1 to 12
+   */
+  synchronized void configure(int precision, int maxCells, long maxGap, double maxAccuracy) {
+    int bits = Math.max(1, Math.min(GeoHash.MAX_BITS / 5, precision)) * 5;
+    boolean resize = bits != mBits || maxCells != mMaxCells;
+    mBits = bits;
+    mMaxCells = Math.max(1, maxCells);
+    mMaxGap = maxGap;
+    mMaxAccuracy = maxAccuracy;
+    if (resize) {
+      allocate(mMaxCells);
+      mHasPrevious = false;
+    }
+  }
+
+  synchronized void reset() {
+    allocate(mMaxCells);
+    mHasPrevious = false;
+    mEvicted = 0;
+  }
+
+  /**
+   * @param time when the fix was received, epoch millis. The SDK's server time freezes while
+   *        the device is parked, which would credit long stays nothing.
+   */
+  synchronized void feed(BDLocation location, long time) {
+    if (!LocationCodec.hasPosition(location) || location.getRadius() > mMaxAccuracy) return;
+    if (mHasPrevious && time <= mPreviousTime) return;
+    long cell = GeoHash.encode(location.getLatitude(), location.getLongitude(), mBits);
+
+    if (mHasPrevious && time - mPreviousTime <= mMaxGap) {
+      int previous = find(mPreviousCell);
+      if (previous >= 0) {
+        mDwell[previous] += time - mPreviousTime;
+        mLastSeen[previous] = time;
+      }
+    }
+    int slot = find(cell);
+    if (slot < 0) {
+      slot = insert(cell);
+    }
+    if (!mHasPrevious || cell != mPreviousCell) {
+      mVisits[slot]++;
+    }
+    mLastSeen[slot] = time;
+
+    mHasPrevious = true;
+    mPreviousCell = cell;
+    mPreviousTime = time;
+  }
+
+  /**
+   * @return the {@code count} cells with the most dwell time, most first
+   */
+  synchronized WritableMap top(int count) {
+    Integer[] slots = new Integer[mSize];
+    int n = 0;
+    for (int i = 0; i < mKeys.length; i++) {
+      if (mKeys[i] != EMPTY) slots[n++] = i;
+    }
+    final double[] dwell = mDwell;
+    Arrays.sort(slots, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(dwell[b], dwell[a]);
+      }
+    });
+
+    WritableArray cells = Arguments.createArray();
+    for (int i = 0; i < Math.min(count, n); i++) {
+      int slot = slots[i];
+      GeoHash.center(mKeys[slot], mBits, mCenter);
+      WritableMap cell = Arguments.createMap();
+      cell.putString("geohash", GeoHash.toBase32(mKeys[slot], mBits));
+      cell.putDouble("latitude", mCenter[0]);
+      cell.putDouble("longitude", mCenter[1]);
+      cell.putDouble("dwell", mDwell[slot]);
+      cell.putInt("visits", mVisits[slot]);
+      cell.putDouble("lastSeen", mLastSeen[slot]);
+      cells.pushMap(cell);
+    }
+    WritableMap result = Arguments.createMap();
+    result.putArray("cells", cells);
+    result.putInt("trackedCells", mSize);
+    result.putDouble("evictedCells", mEvicted);
+    return result;
+  }
+
+  private void allocate(int maxCells) {
+    int capacity = Integer.highestOneBit(Math.max(2, maxCells) * 2 - 1) << 1;
+    mKeys = new long[capacity];
+    Arrays.fill(mKeys, EMPTY);
+    mDwell = new double[capacity];
+    mVisits = new int[capacity];
+    mLastSeen = new long[capacity];
+    mSize = 0;
+  }
+
+  private int find(long key) {
+    int mask = mKeys.length - 1;
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      if (mKeys[i] == key) return i;
+      if (mKeys[i] == EMPTY) return -1;
+    }
+  }
+
+  private int insert(long key) {
+    if (mSize >= mMaxCells) {
+      evictColdest();
+    }
+    int mask = mKeys.length - 1;
+    int i = hash(key) & mask;
+    while (mKeys[i] != EMPTY) i = (i + 1) & mask;
+    mKeys[i] = key;
+    mDwell[i] = 0;
+    mVisits[i] = 0;
+    mLastSeen[i] = 0;
+    mSize++;
+    return i;
+  }
+
+  /**
+   * Drops the least recently seen eighth of the cells. The table is rebuilt rather than
+   * deleted from, since linear probing would otherwise need tombstones.
+   */
+  private void evictColdest() {
+    long[] seen = new long[mSize];
+    int n = 0;
+    for (int i = 0; i < mKeys.length; i++) {
+      if (mKeys[i] != EMPTY) seen[n++] = mLastSeen[i];
+    }
+    Arrays.sort(seen);
+    long threshold = seen[Math.max(0, n / 8 - 1)];
+
+    long[] keys = mKeys;
+    double[] dwell = mDwell;
+    int[] visits = mVisits;
+    long[] lastSeen = mLastSeen;
+    int remaining = Math.max(1, n / 8);
+    mKeys = new long[keys.length];
+    Arrays.fill(mKeys, EMPTY);
+    mDwell = new double[keys.length];
+    mVisits = new int[keys.length];
+    mLastSeen = new long[keys.length];
+    mSize = 0;
+    int mask = mKeys.length - 1;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == EMPTY) continue;
+      if (lastSeen[i] <= threshold && remaining > 0) {
+        remaining--;
+        mEvicted++;
+        continue;
+      }
+      int j = hash(keys[i]) & mask;
+      while (mKeys[j] != EMPTY) j = (j + 1) & mask;
+      mKeys[j] = keys[i];
+      mDwell[j] = dwell[i];
+      mVisits[j] = visits[i];
+      mLastSeen[j] = lastSeen[i];
+      mSize++;
+    }
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
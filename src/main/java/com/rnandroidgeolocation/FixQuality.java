@@ -0,0 +1,112 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+
+/**
+ * Scores fixes between 0 (useless) and 1 (best the SDK can do).
+ *
+ * The intrinsic score combines the loc type, the reported radius and, for GPS, the satellite
+ * count and the SDK's accuracy status; for network fixes, whether they came from wifi or cell
+ * towers. An instance additionally penalises fixes that imply an implausible jump from the
+ * last good fix it saw.
+ */
+final class FixQuality {
+
+  // radius at which the accuracy component halves, meters
+  private static final double RADIUS_SCALE = 30;
+  private static final int GOOD_SATELLITES = 8;
+  // fixes scoring below this never become the consistency reference
+  private static final double REFERENCE_QUALITY = 0.3;
+  private static final double FAST_SPEED = 40;
+  private static final double IMPLAUSIBLE_SPEED = 70;
+  // after this many inconsistent fixes in a row the reference itself is the outlier
+  private static final int MAX_INCONSISTENT = 3;
+
+  private boolean mHasReference;
+  private double mReferenceLatitude;
+  private double mReferenceLongitude;
+  private long mReferenceTime;
+  private int mInconsistent;
+
+  /**
+   * @return the score of the fix on its own, without reference to earlier fixes
+   */
+  static double intrinsicScore(BDLocation location) {
+    double typeWeight;
+    double sourceScore;
+    switch (location.getLocType()) {
+      case BDLocation.TypeGpsLocation:
+        typeWeight = 1;
+        double satellites = location.hasSateNumber()
+                ? Math.min(1, (double) location.getSatelliteNumber() / GOOD_SATELLITES) : 0.5;
+        double status;
+        switch (location.getGpsAccuracyStatus()) {
+          case BDLocation.GPS_ACCURACY_GOOD: status = 1; break;
+          case BDLocation.GPS_ACCURACY_MID: status = 0.7; break;
+          case BDLocation.GPS_ACCURACY_BAD: status = 0.3; break;
+          default: status = 0.6; break;
+        }
+        sourceScore = (satellites + status) / 2;
+        break;
+      case BDLocation.TypeNetWorkLocation:
+        typeWeight = 0.8;
+        String network = location.getNetworkLocationType();
+        sourceScore = "wf".equals(network) ? 0.8 : "cl".equals(network) ? 0.4 : 0.6;
+        break;
+      case BDLocation.TypeCacheLocation:
+        typeWeight = 0.6;
+        sourceScore = 0.5;
+        break;
+      case BDLocation.TypeOffLineLocation:
+        typeWeight = 0.5;
+        sourceScore = 0.4;
+        break;
+      default:
+        // TypeNetWorkException, TypeCriteriaException, server errors: no position at all
+        return 0;
+    }
+    double accuracy = location.hasRadius()
+            ? 1 / (1 + location.getRadius() / RADIUS_SCALE) : 0.3;
+    return typeWeight * (0.6 * accuracy + 0.4 * sourceScore);
+  }
+
+  /**
+   * Scores the fix, including its consistency with the last good fix, and makes it the new
+   * reference if it is good enough.
+   */
+  synchronized double score(BDLocation location, long time) {
+    double score = intrinsicScore(location);
+    if (score == 0) return 0;
+
+    double consistency = 1;
+    if (mHasReference && time > mReferenceTime) {
+      double speed = GeoMath.distance(mReferenceLatitude, mReferenceLongitude,
+              location.getLatitude(), location.getLongitude()) * 1000 / (time - mReferenceTime);
+      if (speed > IMPLAUSIBLE_SPEED) {
+        consistency = 0.2;
+      } else if (speed > FAST_SPEED) {
+        consistency = 0.6;
+      }
+    }
+    if (consistency < 1 && ++mInconsistent >= MAX_INCONSISTENT) {
+      consistency = 1;
+    }
+    if (consistency == 1) {
+      mInconsistent = 0;
+    }
+    score *= consistency;
+
+    if (score >= REFERENCE_QUALITY && (!mHasReference || time >= mReferenceTime)) {
+      mHasReference = true;
+      mReferenceLatitude = location.getLatitude();
+      mReferenceLongitude = location.getLongitude();
+      mReferenceTime = time;
+    }
+    return score;
+  }
+
+  synchronized void reset() {
+    mHasReference = false;
+    mInconsistent = 0;
+  }
+}
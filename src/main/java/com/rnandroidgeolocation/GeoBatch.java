@@ -0,0 +1,119 @@
+package com.rnandroidgeolocation;
+
+/**
+ * Geometry over many points at once. Points are packed as
+ * {@code [lat0, lon0, lat1, lon1, ...]} and results are written into caller-provided arrays,
+ * so a whole batch costs no allocation beyond its inputs and outputs.
+ */
+final class GeoBatch {
+
+  private GeoBatch() {
+  }
+
+  static int count(double[] points) {
+    return points.length / 2;
+  }
+
+  /**
+   * Writes the distance in meters from the origin to every point into {@code out}.
+   */
+  static void distances(double latitude, double longitude, double[] points, double[] out) {
+    for (int i = 0, n = count(points); i < n; i++) {
+      out[i] = GeoMath.distance(latitude, longitude, points[2 * i], points[2 * i + 1]);
+    }
+  }
+
+  /**
+   * Writes the initial bearing from the origin to every point into {@code out}.
+   */
+  static void bearings(double latitude, double longitude, double[] points, double[] out) {
+    for (int i = 0, n = count(points); i < n; i++) {
+      out[i] = GeoMath.bearing(latitude, longitude, points[2 * i], points[2 * i + 1]);
+    }
+  }
+
+  /**
+   * Finds the points nearest to the origin, keeping a bounded max-heap of the best candidates
+   * so only {@code k} entries are ever ordered.
+   *
+   * @param indices receives the point indices, nearest first
+   * @param distances receives the matching distances in meters
+   * @return how many entries were written, at most {@code indices.length}
+   */
+  static int nearest(double latitude, double longitude, double[] points,
+                     int[] indices, double[] distances) {
+    int k = Math.min(indices.length, count(points));
+    int size = 0;
+    for (int i = 0, n = count(points); i < n && k > 0; i++) {
+      double d = GeoMath.distance(latitude, longitude, points[2 * i], points[2 * i + 1]);
+      if (size < k) {
+        indices[size] = i;
+        distances[size] = d;
+        siftUp(indices, distances, size++);
+      } else if (d < distances[0]) {
+        indices[0] = i;
+        distances[0] = d;
+        siftDown(indices, distances, 0, size);
+      }
+    }
+    // heapsort: repeatedly move the farthest remaining entry to the end
+    for (int end = size - 1; end > 0; end--) {
+      swap(indices, distances, 0, end);
+      siftDown(indices, distances, 0, end);
+    }
+    return size;
+  }
+
+  /**
+   * Ray-casting point-in-polygon test on plain latitude/longitude, which is accurate for
+   * polygons that don't span the antimeridian or a pole.
+   *
+   * @param polygon packed vertices; the ring is closed implicitly
+   */
+  static boolean contains(double[] polygon, double latitude, double longitude) {
+    boolean inside = false;
+    int n = count(polygon);
+    for (int i = 0, j = n - 1; i < n; j = i++) {
+      double latI = polygon[2 * i];
+      double lonI = polygon[2 * i + 1];
+      double latJ = polygon[2 * j];
+      double lonJ = polygon[2 * j + 1];
+      if ((latI > latitude) != (latJ > latitude)
+              && longitude < (lonJ - lonI) * (latitude - latI) / (latJ - latI) + lonI) {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
+
+  private static void siftUp(int[] indices, double[] distances, int child) {
+    while (child > 0) {
+      int parent = (child - 1) / 2;
+      if (distances[parent] >= distances[child]) return;
+      swap(indices, distances, parent, child);
+      child = parent;
+    }
+  }
+
+  private static void siftDown(int[] indices, double[] distances, int parent, int size) {
+    while (true) {
+      int largest = parent;
+      int left = 2 * parent + 1;
+      int right = left + 1;
+      if (left < size && distances[left] > distances[largest]) largest = left;
+      if (right < size && distances[right] > distances[largest]) largest = right;
+      if (largest == parent) return;
+      swap(indices, distances, parent, largest);
+      parent = largest;
+    }
+  }
+
+  private static void swap(int[] indices, double[] distances, int a, int b) {
+    int index = indices[a];
+    indices[a] = indices[b];
+    indices[b] = index;
+    double distance = distances[a];
+    distances[a] = distances[b];
+    distances[b] = distance;
+  }
+}
@@ -0,0 +1,110 @@
+package com.rnandroidgeolocation;
+
+/**
+ * Geohashes as packed integers: {@code bits} interleaved bits, longitude first, most
+ * significant bit first. A cell at a coarser precision covers the contiguous integer range
+ * {@link #rangeStart} to {@link #rangeEnd} of its children, which makes prefix lookups plain
+ * range scans.
+ */
+final class GeoHash {
+
+  static final int MAX_BITS = 60;
+
+  private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+  private GeoHash() {
+  }
+
+  static long encode(double latitude, double longitude, int bits) {
+    return interleave(lonIndex(longitude, bits), latIndex(latitude, bits), bits);
+  }
+
+  static int lonBits(int bits) {
+    return (bits + 1) / 2;
+  }
+
+  static int latBits(int bits) {
+    return bits / 2;
+  }
+
+  static long lonIndex(double longitude, int bits) {
+    return index(longitude + 180, 360, lonBits(bits));
+  }
+
+  static long latIndex(double latitude, int bits) {
+    return index(latitude + 90, 180, latBits(bits));
+  }
+
+  static double cellWidth(int bits) {
+    return 360.0 / (1L << lonBits(bits));
+  }
+
+  static double cellHeight(int bits) {
+    return 180.0 / (1L << latBits(bits));
+  }
+
+  static long interleave(long lonIndex, long latIndex, int bits) {
+    int lonBits = lonBits(bits);
+    int latBits = latBits(bits);
+    long hash = 0;
+    for (int i = 0; i < bits; i++) {
+      long bit = (i & 1) == 0
+              ? (lonIndex >>> (lonBits - 1 - i / 2)) & 1
+              : (latIndex >>> (latBits - 1 - i / 2)) & 1;
+      hash = (hash << 1) | bit;
+    }
+    return hash;
+  }
+
+  /**
+   * @return the first hash at {@code targetBits} precision inside {@code cell}
+   */
+  static long rangeStart(long cell, int bits, int targetBits) {
+    return cell << (targetBits - bits);
+  }
+
+  /**
+   * @return the first hash at {@code targetBits} precision past {@code cell}
+   */
+  static long rangeEnd(long cell, int bits, int targetBits) {
+    return (cell + 1) << (targetBits - bits);
+  }
+
+  /**
+   * @return the textual geohash, one character per 5 bits
+   */
+  static String toBase32(long hash, int bits) {
+    char[] chars = new char[bits / 5];
+    for (int i = chars.length - 1; i >= 0; i--) {
+      chars[i] = BASE32[(int) (hash >>> (bits - 5 * (i + 1)) & 31)];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Writes the latitude and longitude of the cell's center into {@code out[0]} and
+   * {@code out[1]}.
+   */
+  static void center(long hash, int bits, double[] out) {
+    int lonBits = lonBits(bits);
+    int latBits = latBits(bits);
+    long lonIndex = 0;
+    long latIndex = 0;
+    for (int i = 0; i < bits; i++) {
+      long bit = (hash >>> (bits - 1 - i)) & 1;
+      if ((i & 1) == 0) {
+        lonIndex = (lonIndex << 1) | bit;
+      } else {
+        latIndex = (latIndex << 1) | bit;
+      }
+    }
+    out[0] = (latIndex + 0.5) * 180.0 / (1L << latBits) - 90;
+    out[1] = (lonIndex + 0.5) * 360.0 / (1L << lonBits) - 180;
+  }
+
+  private static long index(double offset, double span, int bits) {
+    long cells = 1L << bits;
+    long index = (long) Math.floor(offset / span * cells);
+    return Math.max(0, Math.min(cells - 1, index));
+  }
+}
@@ -0,0 +1,56 @@
+package com.rnandroidgeolocation;
+
+/**
+ * Spherical-earth geometry on degrees, good to well under 0.5% at city scales.
+ */
+final class GeoMath {
+
+  static final double EARTH_RADIUS = 6371008.8;
+
+  private GeoMath() {
+  }
+
+  /**
+   * Great-circle distance in meters (haversine).
+   */
+  static double distance(double lat1, double lon1, double lat2, double lon2) {
+    double phi1 = Math.toRadians(lat1);
+    double phi2 = Math.toRadians(lat2);
+    double sinDPhi = Math.sin((phi2 - phi1) / 2);
+    double sinDLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+    double a = sinDPhi * sinDPhi + Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda;
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  /**
+   * Initial great-circle bearing from the first point to the second, degrees clockwise from
+   * north in [0, 360).
+   */
+  static double bearing(double lat1, double lon1, double lat2, double lon2) {
+    double phi1 = Math.toRadians(lat1);
+    double phi2 = Math.toRadians(lat2);
+    double dLambda = Math.toRadians(lon2 - lon1);
+    double y = Math.sin(dLambda) * Math.cos(phi2);
+    double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLambda);
+    return (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+  }
+
+  /**
+   * Point reached travelling {@code distance} meters from the start along {@code bearing}.
+   * Writes latitude and longitude into {@code out[0]} and {@code out[1]}.
+   */
+  static void destination(double latitude, double longitude, double bearing, double distance,
+                          double[] out) {
+    double delta = distance / EARTH_RADIUS;
+    double theta = Math.toRadians(bearing);
+    double phi1 = Math.toRadians(latitude);
+    double sinPhi2 = Math.sin(phi1) * Math.cos(delta)
+            + Math.cos(phi1) * Math.sin(delta) * Math.cos(theta);
+    double phi2 = Math.asin(sinPhi2);
+    double lambda2 = Math.toRadians(longitude) + Math.atan2(
+            Math.sin(theta) * Math.sin(delta) * Math.cos(phi1),
+            Math.cos(delta) - Math.sin(phi1) * sinPhi2);
+    out[0] = Math.toDegrees(phi2);
+    out[1] = (Math.toDegrees(lambda2) + 540) % 360 - 180;
+  }
+}
@@ -0,0 +1,122 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Converts {@link BDLocation} fixes into the payloads sent over the bridge.
+ *
+ * Besides the W3C-style map, fixes can be encoded compactly as a flat array of doubles with
+ * {@link #STRIDE} fields per fix, which is much cheaper to marshal than nested maps.
+ */
+final class LocationCodec {
+
+  static final int FIELD_LATITUDE = 0;
+  static final int FIELD_LONGITUDE = 1;
+  static final int FIELD_ALTITUDE = 2;
+  static final int FIELD_ACCURACY = 3;
+  static final int FIELD_HEADING = 4;
+  static final int FIELD_SPEED = 5;
+  static final int FIELD_TIMESTAMP = 6;
+  static final int FIELD_QUALITY = 7;
+  static final int STRIDE = 8;
+
+  // location.getTime() is Beijing time without a zone designator
+  private static final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
+
+  private LocationCodec() {
+  }
+
+  /**
+   * @return whether the fix carries coordinates, as opposed to reporting a failure
+   */
+  static boolean hasPosition(BDLocation location) {
+    int type = location.getLocType();
+    return type == BDLocation.TypeGpsLocation || type == BDLocation.TypeNetWorkLocation
+            || type == BDLocation.TypeOffLineLocation || type == BDLocation.TypeCacheLocation;
+  }
+
+  /**
+   * @return the error message for a fix without a position: its loc type and the SDK's
+   *         description of it
+   */
+  static String describeFailure(BDLocation location) {
+    String description = location.getLocTypeDescription();
+    return "Location failed with locType " + location.getLocType()
+            + (description != null ? ": " + description : "");
+  }
+
+  /**
+   * @return the server time of the fix in epoch millis, or 0 if it can't be parsed
+   */
+  static long parseTime(BDLocation location) {
+    String time = location.getTime();
+    if (time == null) return 0;
+    synchronized (formatter) {
+      try {
+        Date date = formatter.parse(time + "+0800");
+        return date.getTime();
+      } catch (ParseException e) {
+        e.printStackTrace();
+        return 0;
+      }
+    }
+  }
+
+  static WritableMap toMap(BDLocation location) {
+    return toMap(location, FixQuality.intrinsicScore(location));
+  }
+
+  static WritableMap toMap(BDLocation location, double quality) {
+    WritableMap map = Arguments.createMap();
+    WritableMap coords = Arguments.createMap();
+    coords.putDouble("latitude", location.getLatitude());
+    coords.putDouble("longitude", location.getLongitude());
+    coords.putDouble("altitude", location.getAltitude());
+    coords.putDouble("accuracy", location.getRadius());
+    coords.putDouble("heading", location.getDirection());
+    coords.putDouble("speed", location.getSpeed());
+    map.putMap("coords", coords);
+    map.putDouble("timestamp", parseTime(location));
+    map.putDouble("quality", quality);
+    return map;
+  }
+
+  /**
+   * Appends one fix to {@code out} in the compact field order.
+   */
+  static void appendCompact(WritableArray out, BDLocation location, double quality) {
+    out.pushDouble(location.getLatitude());
+    out.pushDouble(location.getLongitude());
+    out.pushDouble(location.getAltitude());
+    out.pushDouble(location.getRadius());
+    out.pushDouble(location.getDirection());
+    out.pushDouble(location.getSpeed());
+    out.pushDouble(parseTime(location));
+    out.pushDouble(quality);
+  }
+
+  /**
+   * Encodes a batch as a single flat array, {@link #STRIDE} values per fix.
+   *
+   * @param qualities scores per fix, or null to use {@link FixQuality#intrinsicScore}
+   */
+  static WritableArray toCompactArray(List<BDLocation> locations, @Nullable double[] qualities) {
+    WritableArray array = Arguments.createArray();
+    for (int i = 0; i < locations.size(); i++) {
+      BDLocation location = locations.get(i);
+      appendCompact(array, location,
+              qualities != null ? qualities[i] : FixQuality.intrinsicScore(location));
+    }
+    return array;
+  }
+}
@@ -0,0 +1,153 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Paces fix delivery to JS. With a backpressure mode set, at most one emission is in flight
+ * until JS acknowledges it; fixes arriving meanwhile are conflated, queued or batched.
+ */
+final class LocationDeliveryQueue {
+
+  /** Every fix is delivered as soon as it arrives. */
+  static final int MODE_NONE = 0;
+  /** Only the newest pending fix is kept. */
+  static final int MODE_LATEST = 1;
+  /** Pending fixes are queued up to the capacity, dropping the oldest when full. */
+  static final int MODE_DROP_OLDEST = 2;
+  /** All pending fixes are delivered together on the next acknowledgement. */
+  static final int MODE_BATCH = 3;
+
+  static final int DEFAULT_CAPACITY = 16;
+
+  interface Sink {
+    void deliver(List<BDLocation> fixes, double[] qualities, boolean batch);
+  }
+
+  private static class Entry {
+    final BDLocation location;
+    final double quality;
+    final long receivedAt;
+
+    Entry(BDLocation location, double quality, long receivedAt) {
+      this.location = location;
+      this.quality = quality;
+      this.receivedAt = receivedAt;
+    }
+  }
+
+  private final Sink mSink;
+  private final ArrayDeque<Entry> mPending = new ArrayDeque<>();
+  private int mMode = MODE_NONE;
+  private int mCapacity = DEFAULT_CAPACITY;
+  private boolean mAwaitingAck;
+  private long mInFlightSince;
+
+  private long mDelivered;
+  private long mDropped;
+  private long mAcknowledged;
+  private long mLastLag;
+  private long mMaxLag;
+  private long mTotalLag;
+
+  LocationDeliveryQueue(Sink sink) {
+    mSink = sink;
+  }
+
+  static int parseMode(String mode) {
+    if ("latest".equals(mode)) return MODE_LATEST;
+    if ("dropOldest".equals(mode)) return MODE_DROP_OLDEST;
+    if ("batch".equals(mode)) return MODE_BATCH;
+    return MODE_NONE;
+  }
+
+  synchronized void configure(int mode, int capacity) {
+    mMode = mode;
+    mCapacity = Math.max(1, capacity);
+    mPending.clear();
+    mAwaitingAck = false;
+  }
+
+  void offer(BDLocation location, double quality, long now) {
+    List<BDLocation> ready;
+    boolean batch;
+    synchronized (this) {
+      if (mMode != MODE_NONE && mAwaitingAck) {
+        enqueue(new Entry(location, quality, now));
+        return;
+      }
+      ready = Collections.singletonList(location);
+      batch = mMode == MODE_BATCH;
+      mDelivered++;
+      if (mMode != MODE_NONE) {
+        mAwaitingAck = true;
+        mInFlightSince = now;
+      }
+    }
+    mSink.deliver(ready, new double[] {quality}, batch);
+  }
+
+  /**
+   * Marks the in-flight emission as consumed by JS and sends whatever is pending.
+   */
+  void acknowledge(long now) {
+    List<BDLocation> ready;
+    double[] qualities;
+    synchronized (this) {
+      if (!mAwaitingAck) return;
+      long lag = now - mInFlightSince;
+      mLastLag = lag;
+      mMaxLag = Math.max(mMaxLag, lag);
+      mTotalLag += lag;
+      mAcknowledged++;
+      mAwaitingAck = false;
+      if (mPending.isEmpty()) return;
+
+      int count = mMode == MODE_BATCH ? mPending.size() : 1;
+      ready = new ArrayList<>(count);
+      qualities = new double[count];
+      mInFlightSince = mPending.peekFirst().receivedAt;
+      for (int i = 0; i < count; i++) {
+        Entry entry = mPending.pollFirst();
+        ready.add(entry.location);
+        qualities[i] = entry.quality;
+      }
+      mDelivered += ready.size();
+      mAwaitingAck = true;
+    }
+    mSink.deliver(ready, qualities, mMode == MODE_BATCH);
+  }
+
+  synchronized void reset() {
+    mPending.clear();
+    mAwaitingAck = false;
+  }
+
+  synchronized WritableMap getMetrics() {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("delivered", mDelivered);
+    map.putDouble("dropped", mDropped);
+    map.putInt("pending", mPending.size());
+    map.putDouble("lastLag", mLastLag);
+    map.putDouble("maxLag", mMaxLag);
+    map.putDouble("averageLag", mAcknowledged > 0 ? (double) mTotalLag / mAcknowledged : 0);
+    return map;
+  }
+
+  private void enqueue(Entry entry) {
+    if (mMode == MODE_LATEST) {
+      mDropped += mPending.size();
+      mPending.clear();
+    } else if (mPending.size() >= mCapacity) {
+      mPending.pollFirst();
+      mDropped++;
+    }
+    mPending.addLast(entry);
+  }
+}
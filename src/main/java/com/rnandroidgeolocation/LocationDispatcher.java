@@ -0,0 +1,48 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+import com.baidu.location.BDLocationListener;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nullable;
+
+/**
+ * The one listener registered with the SDK. Fans each fix out to internal subscribers, so
+ * subscribing and unsubscribing never touch the {@code LocationClient} listener list.
+ *
+ * Subscribers live in a copy-on-write array: dispatch iterates a snapshot without locking.
+ * The last fix carrying a position is cached here, whoever was subscribed at the time.
+ */
+final class LocationDispatcher implements BDLocationListener {
+
+  private final CopyOnWriteArrayList<BDLocationListener> mSubscribers =
+          new CopyOnWriteArrayList<>();
+  private volatile @Nullable BDLocation mLastFix;
+
+  boolean subscribe(BDLocationListener listener) {
+    return mSubscribers.addIfAbsent(listener);
+  }
+
+  boolean unsubscribe(BDLocationListener listener) {
+    return mSubscribers.remove(listener);
+  }
+
+  boolean hasSubscribers() {
+    return !mSubscribers.isEmpty();
+  }
+
+  @Nullable BDLocation getLastFix() {
+    return mLastFix;
+  }
+
+  @Override
+  public void onReceiveLocation(BDLocation location) {
+    if (location != null && LocationCodec.hasPosition(location)) {
+      mLastFix = location;
+    }
+    for (BDLocationListener subscriber : mSubscribers) {
+      subscriber.onReceiveLocation(location);
+    }
+  }
+}
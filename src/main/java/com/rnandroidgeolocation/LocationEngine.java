@@ -0,0 +1,142 @@
+package com.rnandroidgeolocation;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.baidu.location.BDLocation;
+import com.baidu.location.BDLocationListener;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide owner of the location provider, its dispatcher and the last-fix cache.
+ *
+ * React context reloads and headless tasks each create their own native module instances.
+ * They all attach to this one engine as consumers, so only one {@code LocationClient} ever
+ * runs, one history store is shared and the cached fix survives a context teardown. The client stops once the last
+ * consumer detaches.
+ */
+final class LocationEngine {
+
+  /**
+   * Receives the batches collected by {@link LocationTrackingService}.
+   */
+  interface BatchListener {
+    void onBatch(List<BDLocation> fixes);
+  }
+
+  private static LocationEngine sInstance;
+
+  private final Context mContext;
+  private final BaiduLocationService mService;
+  private LocationHistoryStore mHistory;
+  private final Set<Object> mConsumers =
+          Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+  private final CopyOnWriteArrayList<BatchListener> mBatchListeners =
+          new CopyOnWriteArrayList<>();
+
+  private LocationEngine(Context context) {
+    mContext = context;
+    mService = new BaiduLocationService(context);
+  }
+
+  /**
+   * Returns the engine, creating it on the main thread if needed. No lock is held while
+   * waiting for the main thread, so a caller on the main thread can never deadlock with one
+   * blocked here.
+   */
+  static LocationEngine get(Context context) {
+    synchronized (LocationEngine.class) {
+      if (sInstance != null) return sInstance;
+    }
+    final Context applicationContext = context.getApplicationContext();
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      return create(applicationContext);
+    }
+    // the SDK delivers fixes on the looper it was created on, which must outlive any one
+    // React context
+    FutureTask<LocationEngine> task = new FutureTask<>(new Callable<LocationEngine>() {
+      @Override
+      public LocationEngine call() {
+        return create(applicationContext);
+      }
+    });
+    new Handler(Looper.getMainLooper()).post(task);
+    try {
+      return task.get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException("Could not create the location client", e);
+    }
+  }
+
+  /**
+   * Only called on the main thread, so creation happens once and never waits.
+   */
+  private static synchronized LocationEngine create(Context applicationContext) {
+    if (sInstance == null) {
+      sInstance = new LocationEngine(applicationContext);
+    }
+    return sInstance;
+  }
+
+  BaiduLocationService getService() {
+    return mService;
+  }
+
+  /**
+   * The one history store of the process. Module instances and the tracking service all
+   * write through it, so there is a single connection to the database; it stays open for the
+   * life of the process.
+   */
+  synchronized LocationHistoryStore getHistory() {
+    if (mHistory == null) {
+      mHistory = new LocationHistoryStore(mContext);
+    }
+    return mHistory;
+  }
+
+  void attach(Object consumer) {
+    mConsumers.add(consumer);
+  }
+
+  /**
+   * Unsubscribes the consumer's listeners and stops the client once nothing needs it.
+   */
+  void detach(Object consumer, BDLocationListener... listeners) {
+    for (BDLocationListener listener : listeners) {
+      mService.unregisterListener(listener);
+    }
+    mConsumers.remove(consumer);
+    if (mConsumers.isEmpty()) {
+      mService.stop();
+    } else {
+      mService.stopIfIdle();
+    }
+  }
+
+  void addBatchListener(BatchListener listener) {
+    mBatchListeners.addIfAbsent(listener);
+  }
+
+  void removeBatchListener(BatchListener listener) {
+    mBatchListeners.remove(listener);
+  }
+
+  /**
+   * @return whether any listener received the batch
+   */
+  boolean dispatchBatch(List<BDLocation> fixes) {
+    for (BatchListener listener : mBatchListeners) {
+      listener.onBatch(fixes);
+    }
+    return !mBatchListeners.isEmpty();
+  }
+}
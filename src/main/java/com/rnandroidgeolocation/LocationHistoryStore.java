@@ -0,0 +1,351 @@
+package com.rnandroidgeolocation;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * On-device history of recorded fixes. Rows are indexed by time and by a 30 bit geohash
+ * cell, so time-range, bounding-box and nearest-point lookups never scan the whole table.
+ *
+ * Queries return a page of fixes plus an opaque cursor for the next page ({@code null} once
+ * exhausted). All methods block on disk and belong on the module's processing thread.
+ */
+class LocationHistoryStore extends SQLiteOpenHelper {
+
+  static final int CELL_BITS = 30;
+  static final int DEFAULT_PAGE_SIZE = 100;
+  static final long DEFAULT_RETENTION = 30L * 24 * 60 * 60 * 1000;
+
+  private static final String DATABASE_NAME = "RNAndroidGeolocationHistory.db";
+  private static final int DATABASE_VERSION = 1;
+  private static final String TABLE = "fixes";
+  private static final int MAX_COVER_CELLS = 32;
+  private static final double METERS_PER_DEGREE = 111320;
+  private static final double NEAREST_START_RADIUS = 200;
+  static final double DEFAULT_NEAREST_MAX_DISTANCE = 50000;
+
+  LocationHistoryStore(Context context) {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE + " (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "time INTEGER NOT NULL, " +
+            "latitude REAL NOT NULL, " +
+            "longitude REAL NOT NULL, " +
+            "altitude REAL, " +
+            "accuracy REAL, " +
+            "heading REAL, " +
+            "speed REAL, " +
+            "loc_type INTEGER, " +
+            "cell INTEGER NOT NULL)");
+    db.execSQL("CREATE INDEX " + TABLE + "_time ON " + TABLE + " (time, _id)");
+    db.execSQL("CREATE INDEX " + TABLE + "_cell ON " + TABLE + " (cell)");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+    onCreate(db);
+  }
+
+  void record(BDLocation location, long time) {
+    ContentValues values = new ContentValues();
+    values.put("time", time);
+    values.put("latitude", location.getLatitude());
+    values.put("longitude", location.getLongitude());
+    values.put("altitude", location.getAltitude());
+    values.put("accuracy", location.getRadius());
+    values.put("heading", location.getDirection());
+    values.put("speed", location.getSpeed());
+    values.put("loc_type", location.getLocType());
+    values.put("cell", GeoHash.encode(location.getLatitude(), location.getLongitude(), CELL_BITS));
+    getWritableDatabase().insert(TABLE, null, values);
+  }
+
+  /**
+   * Deletes fixes recorded before {@code time}.
+   */
+  void prune(long time) {
+    getWritableDatabase().delete(TABLE, "time < ?", new String[] {String.valueOf(time)});
+  }
+
+  void clear() {
+    getWritableDatabase().delete(TABLE, null, null);
+  }
+
+  /**
+   * Fixes with {@code from <= time <= to}, oldest first.
+   */
+  WritableMap queryByTime(long from, long to, int limit, @Nullable String cursor) {
+    List<String> args = new ArrayList<>();
+    StringBuilder where = new StringBuilder("time >= ? AND time <= ?");
+    args.add(String.valueOf(from));
+    args.add(String.valueOf(to));
+    return queryPage(where, args, limit, cursor);
+  }
+
+  /**
+   * Fixes inside the box and time range, oldest first.
+   */
+  WritableMap queryInBox(double minLatitude, double minLongitude,
+                         double maxLatitude, double maxLongitude,
+                         long from, long to, int limit, @Nullable String cursor) {
+    List<String> args = new ArrayList<>();
+    StringBuilder where = new StringBuilder();
+    appendBoxClause(where, args, minLatitude, minLongitude, maxLatitude, maxLongitude);
+    where.append(" AND time >= ? AND time <= ?");
+    args.add(String.valueOf(from));
+    args.add(String.valueOf(to));
+    return queryPage(where, args, limit, cursor);
+  }
+
+  /**
+   * Fixes within {@code maxDistance} meters of the point, nearest first. Searches growing
+   * boxes around the point until enough fixes are inside the search radius.
+   *
+   * Only ids and coordinates of the candidates are read; the {@code offset + limit} nearest are
+   * picked with a bounded heap and just the rows of the requested page are loaded in full.
+   */
+  WritableMap queryNearest(double latitude, double longitude, int limit, double maxDistance,
+                           @Nullable String cursor) {
+    int offset = cursor != null ? Integer.parseInt(cursor) : 0;
+    int wanted = offset + limit;
+    double radius = Math.min(NEAREST_START_RADIUS, maxDistance);
+    while (true) {
+      double dLat = radius / METERS_PER_DEGREE;
+      double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+      double minLongitude = -180;
+      double maxLongitude = 180;
+      if (dLon < 180) {
+        minLongitude = wrapLongitude(longitude - dLon);
+        maxLongitude = wrapLongitude(longitude + dLon);
+      }
+      List<String> args = new ArrayList<>();
+      StringBuilder where = new StringBuilder();
+      appendBoxClause(where, args, Math.max(-90, latitude - dLat), minLongitude,
+              Math.min(90, latitude + dLat), maxLongitude);
+
+      long[] ids;
+      double[] points;
+      int inside = 0;
+      Cursor c = getReadableDatabase().query(TABLE,
+              new String[] {"_id", "latitude", "longitude"}, where.toString(),
+              args.toArray(new String[args.size()]), null, null, null);
+      try {
+        ids = new long[c.getCount()];
+        points = new double[2 * c.getCount()];
+        while (c.moveToNext()) {
+          double lat = c.getDouble(1);
+          double lon = c.getDouble(2);
+          if (GeoMath.distance(latitude, longitude, lat, lon) <= radius) {
+            ids[inside] = c.getLong(0);
+            points[2 * inside] = lat;
+            points[2 * inside + 1] = lon;
+            inside++;
+          }
+        }
+      } finally {
+        c.close();
+      }
+      if (inside < wanted && radius < maxDistance) {
+        radius = Math.min(radius * 2, maxDistance);
+        continue;
+      }
+
+      int end = Math.min(inside, wanted);
+      int[] order = new int[end];
+      double[] distances = new double[end];
+      GeoBatch.nearest(latitude, longitude, Arrays.copyOf(points, 2 * inside), order, distances);
+
+      WritableArray fixes = Arguments.createArray();
+      if (offset < end) {
+        long[] pageIds = new long[end - offset];
+        for (int i = offset; i < end; i++) pageIds[i - offset] = ids[order[i]];
+        WritableMap[] rows = loadRows(pageIds);
+        for (int i = offset; i < end; i++) {
+          WritableMap row = rows[i - offset];
+          if (row == null) continue;  // pruned since the candidates were read
+          row.putDouble("distance", distances[i]);
+          fixes.pushMap(row);
+        }
+      }
+      WritableMap page = Arguments.createMap();
+      page.putArray("fixes", fixes);
+      if (end < inside) {
+        page.putString("cursor", String.valueOf(end));
+      } else {
+        page.putNull("cursor");
+      }
+      return page;
+    }
+  }
+
+  /**
+   * @return the rows for {@code ids}, in the same order, null where a row no longer exists
+   */
+  private WritableMap[] loadRows(long[] ids) {
+    StringBuilder where = new StringBuilder("_id IN (");
+    String[] args = new String[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      where.append(i > 0 ? ",?" : "?");
+      args[i] = String.valueOf(ids[i]);
+    }
+    where.append(")");
+    WritableMap[] rows = new WritableMap[ids.length];
+    Cursor c = getReadableDatabase().query(TABLE, null, where.toString(), args,
+            null, null, null);
+    try {
+      int idColumn = c.getColumnIndexOrThrow("_id");
+      while (c.moveToNext()) {
+        long id = c.getLong(idColumn);
+        for (int i = 0; i < ids.length; i++) {
+          if (ids[i] == id) rows[i] = rowToMap(c);
+        }
+      }
+    } finally {
+      c.close();
+    }
+    return rows;
+  }
+
+  private static double wrapLongitude(double longitude) {
+    return ((longitude + 540) % 360) - 180;
+  }
+
+  private WritableMap queryPage(StringBuilder where, List<String> args, int limit,
+                                @Nullable String cursor) {
+    if (cursor != null) {
+      // keyset paging on (time, _id), matching the time index
+      String[] parts = cursor.split(":");
+      where.append(" AND (time > ? OR (time = ? AND _id > ?))");
+      args.add(parts[0]);
+      args.add(parts[0]);
+      args.add(parts[1]);
+    }
+    WritableArray fixes = Arguments.createArray();
+    String next = null;
+    Cursor c = getReadableDatabase().query(TABLE, null, where.toString(),
+            args.toArray(new String[args.size()]), null, null, "time ASC, _id ASC",
+            String.valueOf(limit + 1));
+    try {
+      int count = 0;
+      while (c.moveToNext()) {
+        if (count++ == limit) break;
+        fixes.pushMap(rowToMap(c));
+        next = c.getLong(c.getColumnIndexOrThrow("time")) + ":" +
+                c.getLong(c.getColumnIndexOrThrow("_id"));
+      }
+      if (count <= limit) next = null;
+    } finally {
+      c.close();
+    }
+    WritableMap page = Arguments.createMap();
+    page.putArray("fixes", fixes);
+    if (next != null) {
+      page.putString("cursor", next);
+    } else {
+      page.putNull("cursor");
+    }
+    return page;
+  }
+
+  /**
+   * Restricts to the box. A box whose minLongitude is east of its maxLongitude crosses the
+   * antimeridian and is split in two there.
+   *
+   * @throws IllegalArgumentException if minLatitude is north of maxLatitude or a coordinate is
+   *         out of range
+   */
+  private static void appendBoxClause(StringBuilder where, List<String> args,
+                                      double minLatitude, double minLongitude,
+                                      double maxLatitude, double maxLongitude) {
+    if (!(minLatitude <= maxLatitude) || minLatitude < -90 || maxLatitude > 90
+            || !(Math.abs(minLongitude) <= 180) || !(Math.abs(maxLongitude) <= 180)) {
+      throw new IllegalArgumentException("Invalid bounding box");
+    }
+    if (minLongitude <= maxLongitude) {
+      appendCellClause(where, args, minLatitude, minLongitude, maxLatitude, maxLongitude);
+      return;
+    }
+    where.append("(");
+    appendCellClause(where, args, minLatitude, minLongitude, maxLatitude, 180);
+    where.append(" OR ");
+    appendCellClause(where, args, minLatitude, -180, maxLatitude, maxLongitude);
+    where.append(")");
+  }
+
+  /**
+   * Restricts to a box not crossing the antimeridian, narrowed first to the geohash cell
+   * ranges covering it. Coarser cells are used for large boxes so the clause stays short.
+   */
+  private static void appendCellClause(StringBuilder where, List<String> args,
+                                       double minLatitude, double minLongitude,
+                                       double maxLatitude, double maxLongitude) {
+    int bits = CELL_BITS;
+    long lonFrom, lonTo, latFrom, latTo;
+    while (true) {
+      lonFrom = GeoHash.lonIndex(minLongitude, bits);
+      lonTo = GeoHash.lonIndex(maxLongitude, bits);
+      latFrom = GeoHash.latIndex(minLatitude, bits);
+      latTo = GeoHash.latIndex(maxLatitude, bits);
+      if ((lonTo - lonFrom + 1) * (latTo - latFrom + 1) <= MAX_COVER_CELLS || bits <= 2) break;
+      bits--;
+    }
+
+    long[] cells = new long[(int) ((lonTo - lonFrom + 1) * (latTo - latFrom + 1))];
+    int n = 0;
+    for (long lon = lonFrom; lon <= lonTo; lon++) {
+      for (long lat = latFrom; lat <= latTo; lat++) {
+        cells[n++] = GeoHash.interleave(lon, lat, bits);
+      }
+    }
+    Arrays.sort(cells);
+
+    where.append("((");
+    for (int i = 0; i < n; ) {
+      int j = i;
+      while (j + 1 < n && cells[j + 1] == cells[j] + 1) j++;
+      if (i > 0) where.append(" OR ");
+      where.append("(cell >= ? AND cell < ?)");
+      args.add(String.valueOf(GeoHash.rangeStart(cells[i], bits, CELL_BITS)));
+      args.add(String.valueOf(GeoHash.rangeEnd(cells[j], bits, CELL_BITS)));
+      i = j + 1;
+    }
+    where.append(") AND latitude >= ? AND latitude <= ? AND longitude >= ? AND longitude <= ?)");
+    args.add(String.valueOf(minLatitude));
+    args.add(String.valueOf(maxLatitude));
+    args.add(String.valueOf(minLongitude));
+    args.add(String.valueOf(maxLongitude));
+  }
+
+  private static WritableMap rowToMap(Cursor c) {
+    WritableMap map = Arguments.createMap();
+    WritableMap coords = Arguments.createMap();
+    coords.putDouble("latitude", c.getDouble(c.getColumnIndexOrThrow("latitude")));
+    coords.putDouble("longitude", c.getDouble(c.getColumnIndexOrThrow("longitude")));
+    coords.putDouble("altitude", c.getDouble(c.getColumnIndexOrThrow("altitude")));
+    coords.putDouble("accuracy", c.getDouble(c.getColumnIndexOrThrow("accuracy")));
+    coords.putDouble("heading", c.getDouble(c.getColumnIndexOrThrow("heading")));
+    coords.putDouble("speed", c.getDouble(c.getColumnIndexOrThrow("speed")));
+    map.putMap("coords", coords);
+    map.putDouble("timestamp", c.getLong(c.getColumnIndexOrThrow("time")));
+    return map;
+  }
+}
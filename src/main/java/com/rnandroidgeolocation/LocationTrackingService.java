@@ -0,0 +1,196 @@
+package com.rnandroidgeolocation;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+
+import com.baidu.location.BDLocation;
+import com.baidu.location.BDLocationListener;
+import com.baidu.location.LocationClientOption;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Foreground service that keeps collecting fixes while the app is in the background.
+ *
+ * Every new fix goes into the on-device history right away; JS is only woken with a
+ * {@code geolocationBatch} event when {@link BackgroundTracker} decides a batch is due. If no
+ * React context is listening at that point the fixes simply stay in the history. The SDK's
+ * re-deliveries of an unchanged fix are dropped, and the history is pruned to the retention
+ * period every hour.
+ */
+public class LocationTrackingService extends Service {
+
+  static final String EXTRA_BATCH_SIZE = "batchSize";
+  static final String EXTRA_BATCH_INTERVAL = "batchInterval";
+  static final String EXTRA_HISTORY_RETENTION = "historyRetention";
+  static final String EXTRA_TITLE = "notificationTitle";
+  static final String EXTRA_TEXT = "notificationText";
+
+  private static final int NOTIFICATION_ID = 0x6e0;
+  private static final long PRUNE_INTERVAL = 60 * 60 * 1000;
+
+  private static volatile boolean sRunning;
+
+  private LocationEngine mEngine;
+  private BackgroundTracker mTracker;
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private LocationHistoryStore mHistory;
+  private final DuplicateFixFilter mDuplicateFilter = new DuplicateFixFilter();
+  private volatile long mRetention = LocationHistoryStore.DEFAULT_RETENTION;
+  // the option in force before the first tier change, restored when tracking stops
+  private @Nullable LocationClientOption mBaseOption;
+  private @Nullable LocationClientOption mTierOption;
+
+  private final BDLocationListener mLocationListener = new BDLocationListener() {
+    @Override
+    public void onReceiveLocation(final BDLocation location) {
+      if (location == null || !LocationCodec.hasPosition(location)) return;
+      if (mDuplicateFilter.check(location, System.currentTimeMillis())
+              != DuplicateFixFilter.EMIT) {
+        return;
+      }
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          mHistory.record(location, LocationCodec.parseTime(location));
+        }
+      });
+      mTracker.offer(location);
+    }
+  };
+
+  private final Runnable mTick = new Runnable() {
+    @Override
+    public void run() {
+      mTracker.tick();
+      mHandler.postDelayed(this, Math.max(1000, mTracker.getBatchInterval() / 4));
+    }
+  };
+
+  private final Runnable mPrune = new Runnable() {
+    @Override
+    public void run() {
+      mHistory.prune(System.currentTimeMillis() - mRetention);
+      mHandler.postDelayed(this, PRUNE_INTERVAL);
+    }
+  };
+
+  static boolean isRunning() {
+    return sRunning;
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    mThread = new HandlerThread("BDLocationTracking");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mEngine = LocationEngine.get(this);
+    mHistory = mEngine.getHistory();
+    mEngine.attach(this);
+    final BaiduLocationService service = mEngine.getService();
+    mTracker = new BackgroundTracker(
+      new BackgroundTracker.Clock() {
+        @Override
+        public long now() {
+          return System.currentTimeMillis();
+        }
+      },
+      new BackgroundTracker.Sink() {
+        @Override
+        public void onBatch(List<BDLocation> fixes) {
+          mEngine.dispatchBatch(fixes);
+        }
+      },
+      new BackgroundTracker.IntervalControl() {
+        @Override
+        public void setInterval(int millis) {
+          LocationClientOption current = service.getOption();
+          if (current == null || current != mTierOption) {
+            // first tier, or a watch has set its own option since the last one
+            mBaseOption = current;
+          }
+          // a copy: the base option may be the one a foreground watch passed in
+          LocationClientOption option = new LocationClientOption(mBaseOption != null
+                  ? mBaseOption : service.getDefaultLocationClientOption());
+          option.setScanSpan(millis);
+          mTierOption = option;
+          service.setLocationOption(option);
+        }
+      });
+    sRunning = true;
+  }
+
+  @Override
+  public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+    // a sticky restart delivers a null intent: keep the defaults
+    if (intent != null) {
+      mTracker.configure(
+              intent.getIntExtra(EXTRA_BATCH_SIZE, BackgroundTracker.DEFAULT_BATCH_SIZE),
+              intent.getLongExtra(EXTRA_BATCH_INTERVAL, BackgroundTracker.DEFAULT_BATCH_INTERVAL));
+      mRetention = intent.getLongExtra(EXTRA_HISTORY_RETENTION,
+              LocationHistoryStore.DEFAULT_RETENTION);
+    }
+    startForeground(NOTIFICATION_ID, buildNotification(intent));
+
+    BaiduLocationService service = mEngine.getService();
+    service.registerListener(mLocationListener);
+    service.start();
+    mHandler.removeCallbacks(mTick);
+    mHandler.post(mTick);
+    mHandler.removeCallbacks(mPrune);
+    mHandler.post(mPrune);
+    return START_STICKY;
+  }
+
+  @Override
+  public void onDestroy() {
+    sRunning = false;
+    mHandler.removeCallbacks(mTick);
+    mHandler.removeCallbacks(mPrune);
+    mTracker.flush();
+    BaiduLocationService service = mEngine.getService();
+    if (mTierOption != null && service.getOption() == mTierOption) {
+      service.setLocationOption(mBaseOption != null
+              ? mBaseOption : service.getDefaultLocationClientOption());
+    }
+    mEngine.detach(this, mLocationListener);
+    // quitSafely would need API 18; posting keeps the pending history writes
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mThread.quit();
+      }
+    });
+    stopForeground(true);
+    super.onDestroy();
+  }
+
+  @Override
+  public @Nullable IBinder onBind(Intent intent) {
+    return null;
+  }
+
+  private Notification buildNotification(@Nullable Intent intent) {
+    String title = intent != null ? intent.getStringExtra(EXTRA_TITLE) : null;
+    String text = intent != null ? intent.getStringExtra(EXTRA_TEXT) : null;
+    Notification.Builder builder = new Notification.Builder(this)
+            .setSmallIcon(getApplicationInfo().icon)
+            .setContentTitle(title != null ? title : "Location tracking")
+            .setOngoing(true);
+    if (text != null) builder.setContentText(text);
+    Intent launch = getPackageManager().getLaunchIntentForPackage(getPackageName());
+    if (launch != null) {
+      builder.setContentIntent(PendingIntent.getActivity(this, 0, launch, 0));
+    }
+    return builder.build();
+  }
+}
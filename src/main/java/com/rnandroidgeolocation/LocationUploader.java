@@ -0,0 +1,235 @@
+package com.rnandroidgeolocation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.common.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Uploads fixes to a backend without going through JS.
+ *
+ * Fixes are collected into a batch that is sealed once it reaches {@code maxBatchSize} fixes
+ * or {@code maxBatchAge} millis. Sealed batches go into an {@link UploadQueue}, which survives
+ * process restarts, and are POSTed oldest first with {@code Content-Encoding: gzip}. Failed
+ * sends back off exponentially with full jitter; batches the server rejects outright are set
+ * aside so they don't hold up the rest.
+ *
+ * All work happens on the uploader's own thread so slow networks never stall fix processing.
+ */
+final class LocationUploader {
+
+  static final int DEFAULT_MAX_BATCH_SIZE = 100;
+  static final long DEFAULT_MAX_BATCH_AGE = 60 * 1000;
+  static final long DEFAULT_BASE_RETRY_DELAY = 5 * 1000;
+  static final long DEFAULT_MAX_RETRY_DELAY = 15 * 60 * 1000;
+
+  private static final String TAG = "GeoLocation";
+
+  private final UploadQueue mQueue;
+  private final HandlerThread mThread;
+  private final Handler mHandler;
+  private final Random mRandom = new Random();
+
+  // configuration and state below are only touched on mThread
+  private String mUrl;
+  private Map<String, String> mHeaders = new HashMap<>();
+  private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private long mMaxBatchAge = DEFAULT_MAX_BATCH_AGE;
+  private long mBaseRetryDelay = DEFAULT_BASE_RETRY_DELAY;
+  private long mMaxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+
+  private JSONArray mBatch = new JSONArray();
+  private long mBatchStart;
+  // uptime, the clock the seal runnable is scheduled on
+  private long mBatchOpenedAt;
+  private int mAttempt;
+  private boolean mSendScheduled;
+
+  private long mUploadedBatches;
+  private long mUploadedFixes;
+  private long mFailedAttempts;
+  private long mLastDeliveryLag;
+
+  private final Runnable mSealRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (mBatch.length() == 0) return;
+      long remaining = mBatchOpenedAt + mMaxBatchAge - SystemClock.uptimeMillis();
+      if (remaining > 0) {
+        mHandler.postDelayed(this, remaining);
+      } else {
+        seal();
+      }
+    }
+  };
+
+  private final Runnable mSendRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mSendScheduled = false;
+      sendNext();
+    }
+  };
+
+  LocationUploader(File queueDir) {
+    mQueue = new UploadQueue(queueDir);
+    mThread = new HandlerThread("BDLocationUpload");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+  }
+
+  void configure(final String url, final Map<String, String> headers, final int maxBatchSize,
+                 final long maxBatchAge, final long baseRetryDelay, final long maxRetryDelay,
+                 final int maxQueueDepth, final long maxQueueAge) {
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mUrl = url;
+        mHeaders = headers;
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mMaxBatchAge = maxBatchAge;
+        mBaseRetryDelay = baseRetryDelay;
+        mMaxRetryDelay = maxRetryDelay;
+        mQueue.setLimits(maxQueueDepth, maxQueueAge);
+        mQueue.open();
+        mAttempt = 0;
+        scheduleSend(0);
+      }
+    });
+  }
+
+  void offer(final BDLocation location, final long time) {
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          JSONObject fix = new JSONObject();
+          fix.put("latitude", location.getLatitude());
+          fix.put("longitude", location.getLongitude());
+          fix.put("altitude", location.getAltitude());
+          fix.put("accuracy", location.getRadius());
+          fix.put("heading", location.getDirection());
+          fix.put("speed", location.getSpeed());
+          fix.put("timestamp", time);
+          fix.put("locType", location.getLocType());
+          if (mBatch.length() == 0) {
+            mBatchStart = SystemClock.currentTimeMillis();
+            mBatchOpenedAt = SystemClock.uptimeMillis();
+            mHandler.postDelayed(mSealRunnable, mMaxBatchAge);
+          }
+          mBatch.put(fix);
+        } catch (JSONException e) {
+          Log.w(TAG, "Dropping unencodable fix", e);
+          return;
+        }
+        if (mBatch.length() >= mMaxBatchSize) {
+          seal();
+        }
+      }
+    });
+  }
+
+  /**
+   * Seals the open batch so it is persisted and sent right away.
+   */
+  void flush() {
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (mBatch.length() > 0) seal();
+      }
+    });
+  }
+
+  void quit() {
+    flush();
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mThread.quit();
+      }
+    });
+  }
+
+  /**
+   * Reads the metrics on the uploader thread and hands them to {@code callback} there.
+   */
+  void getMetrics(final Callback callback) {
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        String[] queued = mQueue.queued();
+        WritableMap map = Arguments.createMap();
+        map.putInt("queueDepth", queued.length);
+        map.putInt("pendingFixes", mBatch.length());
+        map.putDouble("uploadedBatches", mUploadedBatches);
+        map.putDouble("uploadedFixes", mUploadedFixes);
+        map.putDouble("failedAttempts", mFailedAttempts);
+        map.putDouble("lastDeliveryLag", mLastDeliveryLag);
+        map.putInt("deadLetters", mQueue.deadLetterCount());
+        map.putDouble("droppedBatches", mQueue.getDropped());
+        map.putDouble("oldestQueuedAge", queued.length > 0
+                ? SystemClock.currentTimeMillis() - UploadQueue.createdAt(queued[0]) : 0);
+        callback.invoke(map);
+      }
+    });
+  }
+
+  private void seal() {
+    mHandler.removeCallbacks(mSealRunnable);
+    try {
+      mQueue.enqueue(mBatch, mBatchStart, SystemClock.currentTimeMillis());
+    } catch (IOException e) {
+      Log.w(TAG, "Could not persist location batch", e);
+    }
+    mBatch = new JSONArray();
+    scheduleSend(0);
+  }
+
+  private void scheduleSend(long delay) {
+    if (mSendScheduled) return;
+    mSendScheduled = true;
+    mHandler.postDelayed(mSendRunnable, delay);
+  }
+
+  private void sendNext() {
+    if (mUrl == null) return;
+    int result = mQueue.sendNext(mUrl, mHeaders);
+    String head = mQueue.lastHead();
+    switch (result) {
+      case UploadQueue.SENT:
+        mAttempt = 0;
+        mUploadedBatches++;
+        mUploadedFixes += UploadQueue.fixCount(head);
+        mLastDeliveryLag = SystemClock.currentTimeMillis() - UploadQueue.createdAt(head);
+        scheduleSend(0);
+        break;
+      case UploadQueue.REJECTED:
+        Log.w(TAG, "Location batch " + head + " rejected by the server, moved to dead letters");
+        mAttempt = 0;
+        scheduleSend(0);
+        break;
+      case UploadQueue.RETRY:
+        mFailedAttempts++;
+        long ceiling = Math.min(mMaxRetryDelay, mBaseRetryDelay << Math.min(mAttempt, 20));
+        mAttempt++;
+        scheduleSend((long) (mRandom.nextDouble() * ceiling));
+        break;
+    }
+  }
+}
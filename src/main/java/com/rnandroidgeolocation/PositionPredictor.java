@@ -0,0 +1,126 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Estimates the position at an arbitrary time from the last two fixes, so a map marker can
+ * move smoothly between fixes without raising the scan rate.
+ *
+ * Between the two fixes the position is interpolated. After the last fix it is dead-reckoned
+ * along the fix's speed and heading when the SDK reports them (GPS), or along the velocity
+ * implied by the two fixes otherwise, for at most {@link #MAX_HORIZON} millis. The reported
+ * error radius grows with the fix radius, a speed uncertainty and a bounded acceleration.
+ *
+ * Times are device wall-clock millis at which the fixes were received, so they line up with
+ * {@code Date.now()} in JS.
+ */
+final class PositionPredictor {
+
+  static final long MAX_HORIZON = 10 * 1000;
+  private static final double ACCELERATION_BOUND = 2;
+  private static final double SPEED_ERROR_RATIO = 0.1;
+  private static final double SPEED_ERROR_FLOOR = 0.5;
+
+  private int mFixes;
+  private double mPreviousLatitude;
+  private double mPreviousLongitude;
+  private long mPreviousTime;
+  private double mPreviousRadius;
+
+  private double mLatitude;
+  private double mLongitude;
+  private long mTime;
+  private double mRadius;
+  private double mSpeed;
+  private double mHeading;
+  private boolean mHasVelocity;
+
+  private final double[] mPoint = new double[2];
+
+  synchronized void feed(BDLocation location, long receivedAt) {
+    if (!LocationCodec.hasPosition(location)) return;
+    double latitude = location.getLatitude();
+    double longitude = location.getLongitude();
+    // the SDK re-delivers its cached result every scan span; that is no new information
+    if (mFixes > 0 && (receivedAt <= mTime
+            || (latitude == mLatitude && longitude == mLongitude))) {
+      return;
+    }
+    mPreviousLatitude = mLatitude;
+    mPreviousLongitude = mLongitude;
+    mPreviousTime = mTime;
+    mPreviousRadius = mRadius;
+    mLatitude = latitude;
+    mLongitude = longitude;
+    mTime = receivedAt;
+    mRadius = location.getRadius();
+    mFixes++;
+
+    if (location.getLocType() == BDLocation.TypeGpsLocation && location.hasSpeed()
+            && location.getDirection() >= 0) {
+      // SDK speed is km/h
+      mSpeed = location.getSpeed() / 3.6;
+      mHeading = location.getDirection();
+      mHasVelocity = true;
+    } else if (mFixes > 1) {
+      mSpeed = GeoMath.distance(mPreviousLatitude, mPreviousLongitude, mLatitude, mLongitude)
+              * 1000 / (mTime - mPreviousTime);
+      mHeading = GeoMath.bearing(mPreviousLatitude, mPreviousLongitude, mLatitude, mLongitude);
+      mHasVelocity = true;
+    } else {
+      mHasVelocity = false;
+    }
+  }
+
+  synchronized void reset() {
+    mFixes = 0;
+    mHasVelocity = false;
+  }
+
+  /**
+   * @return the predicted position at {@code time}, or null before the first fix
+   */
+  synchronized @Nullable WritableMap predict(long time) {
+    if (mFixes == 0) return null;
+
+    double errorRadius;
+    boolean extrapolated;
+    if (mFixes > 1 && time < mTime) {
+      // smooth between the last two fixes
+      double f = Math.max(0, (double) (time - mPreviousTime) / (mTime - mPreviousTime));
+      mPoint[0] = mPreviousLatitude + (mLatitude - mPreviousLatitude) * f;
+      mPoint[1] = mPreviousLongitude + (mLongitude - mPreviousLongitude) * f;
+      errorRadius = mPreviousRadius + (mRadius - mPreviousRadius) * f;
+      extrapolated = false;
+    } else {
+      double seconds = Math.max(0, Math.min(time - mTime, MAX_HORIZON)) / 1000.0;
+      if (mHasVelocity && seconds > 0) {
+        GeoMath.destination(mLatitude, mLongitude, mHeading, mSpeed * seconds, mPoint);
+      } else {
+        mPoint[0] = mLatitude;
+        mPoint[1] = mLongitude;
+      }
+      double speedError = Math.max(SPEED_ERROR_FLOOR, mSpeed * SPEED_ERROR_RATIO);
+      errorRadius = mRadius + speedError * seconds
+              + 0.5 * ACCELERATION_BOUND * seconds * seconds;
+      extrapolated = seconds > 0;
+    }
+
+    WritableMap map = Arguments.createMap();
+    WritableMap coords = Arguments.createMap();
+    coords.putDouble("latitude", mPoint[0]);
+    coords.putDouble("longitude", mPoint[1]);
+    coords.putDouble("accuracy", errorRadius);
+    coords.putDouble("heading", mHeading);
+    // km/h like the SDK, so predicted positions read the same as LocationCodec.toMap ones
+    coords.putDouble("speed", mSpeed * 3.6);
+    map.putMap("coords", coords);
+    map.putDouble("timestamp", time);
+    map.putBoolean("extrapolated", extrapolated);
+    return map;
+  }
+}
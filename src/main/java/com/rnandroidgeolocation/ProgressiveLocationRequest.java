@@ -0,0 +1,142 @@
+package com.rnandroidgeolocation;
+
+import android.os.Handler;
+
+import com.baidu.location.BDLocation;
+import com.baidu.location.BDLocationListener;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.common.SystemClock;
+
+import javax.annotation.Nullable;
+
+/**
+ * A one-shot position request that reports checkpoints on the way to its target accuracy.
+ *
+ * The cached fix, if it is within {@code maximumAge}, is reported straight away. Any live fix
+ * supersedes it, however coarse, since it is fresher; after that every fix that is more
+ * accurate than the best so far is reported, tagged with the provider it came from. The
+ * request succeeds with the first fix within the target accuracy, or at the deadline with the
+ * best fix seen. It only fails when the SDK reports a failure, or the deadline passes, before
+ * a single fix.
+ */
+final class ProgressiveLocationRequest {
+
+  static final double DEFAULT_DESIRED_ACCURACY = 50;
+
+  static final String STAGE_CACHED = "cached";
+  static final String STAGE_NETWORK = "network";
+  static final String STAGE_GPS = "gps";
+
+  interface Sink {
+    void onProgress(String stage, WritableMap position);
+  }
+
+  private final BaiduLocationService mService;
+  private final Sink mSink;
+  private final double mDesiredAccuracy;
+  private final long mTimeout;
+  private final long mMaximumAge;
+  private final Callback mSuccess;
+  private final Callback mError;
+  private final Handler mHandler = new Handler();
+
+  private @Nullable BDLocation mBest;
+  private boolean mBestIsCached;
+  private boolean mFinished;
+
+  private final Runnable mDeadline = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (ProgressiveLocationRequest.this) {
+        if (mFinished) return;
+        if (mBest != null) {
+          finish(mBest);
+        } else {
+          fail("Location request timed out");
+        }
+      }
+    }
+  };
+
+  private final BDLocationListener mLocationListener = new BDLocationListener() {
+    @Override
+    public void onReceiveLocation(BDLocation location) {
+      if (location == null) return;
+      synchronized (ProgressiveLocationRequest.this) {
+        if (mFinished) return;
+        if (!LocationCodec.hasPosition(location)) {
+          // with a checkpoint in hand, keep waiting for a live fix until the deadline
+          if (mBest == null) fail(LocationCodec.describeFailure(location));
+        } else if (isAccurateEnough(location)) {
+          finish(location);
+        } else if (improves(location)) {
+          mBest = location;
+          mBestIsCached = false;
+          mSink.onProgress(
+                  location.getLocType() == BDLocation.TypeGpsLocation ? STAGE_GPS : STAGE_NETWORK,
+                  LocationCodec.toMap(location));
+        }
+      }
+    }
+  };
+
+  ProgressiveLocationRequest(
+          BaiduLocationService service,
+          Sink sink,
+          double desiredAccuracy,
+          long timeout,
+          long maximumAge,
+          Callback success,
+          Callback error) {
+    mService = service;
+    mSink = sink;
+    mDesiredAccuracy = desiredAccuracy;
+    mTimeout = timeout;
+    mMaximumAge = maximumAge;
+    mSuccess = success;
+    mError = error;
+  }
+
+  /**
+   * @param cached the last known fix, reported as the first checkpoint unless it is older
+   *        than the maximum age
+   */
+  synchronized void invoke(@Nullable BDLocation cached) {
+    if (cached != null && LocationCodec.hasPosition(cached)
+            && SystemClock.currentTimeMillis() - LocationCodec.parseTime(cached) < mMaximumAge) {
+      mBest = cached;
+      mBestIsCached = true;
+      mSink.onProgress(STAGE_CACHED, LocationCodec.toMap(cached));
+    }
+    mService.registerListener(mLocationListener);
+    mService.start();
+    mHandler.postDelayed(mDeadline, mTimeout);
+  }
+
+  private boolean isAccurateEnough(BDLocation location) {
+    return location.hasRadius() && location.getRadius() <= mDesiredAccuracy;
+  }
+
+  private boolean improves(BDLocation location) {
+    if (mBest == null || mBestIsCached) return true;
+    if (!location.hasRadius()) return !mBest.hasRadius();
+    return !mBest.hasRadius() || location.getRadius() <= mBest.getRadius();
+  }
+
+  private void finish(BDLocation location) {
+    mFinished = true;
+    mHandler.removeCallbacks(mDeadline);
+    mService.unregisterListener(mLocationListener);
+    mService.stopIfIdle();
+    mSuccess.invoke(LocationCodec.toMap(location));
+  }
+
+  private void fail(String message) {
+    mFinished = true;
+    mHandler.removeCallbacks(mDeadline);
+    mService.unregisterListener(mLocationListener);
+    mService.stopIfIdle();
+    mError.invoke(message);
+  }
+}
@@ -0,0 +1,175 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Splits the fix stream into stops and trips as fixes arrive.
+ *
+ * A stop is a run of fixes that stay within {@code radius} meters of their centroid for at least
+ * {@code minDuration} millis. The stop is announced with a {@code stopStart} event once that
+ * duration is reached, the preceding trip is summarised with a {@code tripSummary} event, and
+ * a {@code stopEnd} event follows when a fix leaves the radius.
+ */
+final class StaySegmenter {
+
+  static final double DEFAULT_RADIUS = 100;
+  static final long DEFAULT_MIN_DURATION = 5 * 60 * 1000;
+  static final double DEFAULT_MAX_ACCURACY = 100;
+
+  interface Sink {
+    void emit(String eventName, WritableMap event);
+  }
+
+  private final Sink mSink;
+  private double mRadius = DEFAULT_RADIUS;
+  private long mMinDuration = DEFAULT_MIN_DURATION;
+  private double mMaxAccuracy = DEFAULT_MAX_ACCURACY;
+
+  // candidate stop: fixes within mRadius of their running centroid
+  private boolean mHasCandidate;
+  private double mCandidateLatitude;
+  private double mCandidateLongitude;
+  private int mCandidateFixes;
+  private long mCandidateStart;
+  private long mCandidateEnd;
+  private double mTripDistanceAtCandidate;
+  private boolean mStopped;
+
+  // current trip
+  private boolean mHasTrip;
+  private long mTripStart;
+  private double mTripStartLatitude;
+  private double mTripStartLongitude;
+  private double mTripDistance;
+  private double mTripMaxSpeed;
+
+  private boolean mHasLast;
+  private double mLastLatitude;
+  private double mLastLongitude;
+  private long mLastTime;
+
+  StaySegmenter(Sink sink) {
+    mSink = sink;
+  }
+
+  synchronized void configure(double radius, long minDuration, double maxAccuracy) {
+    mRadius = radius;
+    mMinDuration = minDuration;
+    mMaxAccuracy = maxAccuracy;
+  }
+
+  synchronized void reset() {
+    mHasCandidate = false;
+    mStopped = false;
+    mHasTrip = false;
+    mHasLast = false;
+  }
+
+  /**
+   * @param time when the fix was received, epoch millis. Not the SDK's server time, which
+   *        repeats while the device stands still and would hide exactly the stops looked for.
+   */
+  synchronized void feed(BDLocation location, long time) {
+    if (!LocationCodec.hasPosition(location) || location.getRadius() > mMaxAccuracy) return;
+    if (mHasLast && time <= mLastTime) return;
+    double latitude = location.getLatitude();
+    double longitude = location.getLongitude();
+
+    if (!mStopped) {
+      if (!mHasTrip) {
+        startTrip(time, latitude, longitude);
+      } else if (mHasLast) {
+        double step = GeoMath.distance(mLastLatitude, mLastLongitude, latitude, longitude);
+        mTripDistance += step;
+        mTripMaxSpeed = Math.max(mTripMaxSpeed, step * 1000 / (time - mLastTime));
+      }
+    }
+    mHasLast = true;
+    mLastLatitude = latitude;
+    mLastLongitude = longitude;
+    mLastTime = time;
+
+    if (!mHasCandidate) {
+      startCandidate(time, latitude, longitude);
+      return;
+    }
+
+    double d = GeoMath.distance(mCandidateLatitude, mCandidateLongitude, latitude, longitude);
+    if (d <= mRadius) {
+      mCandidateFixes++;
+      mCandidateLatitude += (latitude - mCandidateLatitude) / mCandidateFixes;
+      mCandidateLongitude += (longitude - mCandidateLongitude) / mCandidateFixes;
+      mCandidateEnd = time;
+      if (!mStopped && mCandidateEnd - mCandidateStart >= mMinDuration) {
+        mStopped = true;
+        emitTripSummary();
+        WritableMap event = Arguments.createMap();
+        event.putDouble("latitude", mCandidateLatitude);
+        event.putDouble("longitude", mCandidateLongitude);
+        event.putDouble("arrival", mCandidateStart);
+        mSink.emit("stopStart", event);
+      }
+      return;
+    }
+
+    if (mStopped) {
+      WritableMap event = Arguments.createMap();
+      event.putDouble("latitude", mCandidateLatitude);
+      event.putDouble("longitude", mCandidateLongitude);
+      event.putDouble("arrival", mCandidateStart);
+      event.putDouble("departure", mCandidateEnd);
+      event.putDouble("duration", mCandidateEnd - mCandidateStart);
+      event.putInt("fixes", mCandidateFixes);
+      mSink.emit("stopEnd", event);
+      mStopped = false;
+      startTrip(mCandidateEnd, mCandidateLatitude, mCandidateLongitude);
+      mTripDistance = GeoMath.distance(mCandidateLatitude, mCandidateLongitude, latitude, longitude);
+    }
+    startCandidate(time, latitude, longitude);
+  }
+
+  private void startTrip(long time, double latitude, double longitude) {
+    mHasTrip = true;
+    mTripStart = time;
+    mTripStartLatitude = latitude;
+    mTripStartLongitude = longitude;
+    mTripDistance = 0;
+    mTripMaxSpeed = 0;
+  }
+
+  private void startCandidate(long time, double latitude, double longitude) {
+    mHasCandidate = true;
+    mCandidateLatitude = latitude;
+    mCandidateLongitude = longitude;
+    mCandidateFixes = 1;
+    mCandidateStart = time;
+    mCandidateEnd = time;
+    mTripDistanceAtCandidate = mTripDistance;
+  }
+
+  /**
+   * Summarises the trip up to the arrival at the candidate stop; movement inside the stop
+   * radius is not counted.
+   */
+  private void emitTripSummary() {
+    long duration = mCandidateStart - mTripStart;
+    double distance = mTripDistanceAtCandidate;
+    mHasTrip = false;
+    if (duration <= 0 || distance <= 0) return;
+
+    WritableMap event = Arguments.createMap();
+    event.putDouble("startTime", mTripStart);
+    event.putDouble("endTime", mCandidateStart);
+    event.putDouble("duration", duration);
+    event.putDouble("distance", distance);
+    event.putDouble("averageSpeed", distance * 1000 / duration);
+    event.putDouble("maxSpeed", mTripMaxSpeed);
+    event.putDouble("startLatitude", mTripStartLatitude);
+    event.putDouble("startLongitude", mTripStartLongitude);
+    event.putDouble("endLatitude", mCandidateLatitude);
+    event.putDouble("endLongitude", mCandidateLongitude);
+    mSink.emit("tripSummary", event);
+  }
+}
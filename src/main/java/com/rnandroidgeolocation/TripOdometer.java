@@ -0,0 +1,160 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Accumulates distance travelled, moving time and speed statistics from the fix stream.
+ *
+ * Fixes less accurate than {@code maxAccuracy} are dropped, and steps shorter than the larger
+ * of {@code minStep} and the fix's own radius are treated as jitter: the anchor stays put until
+ * the device has really moved. A step faster than is plausible is rejected, and judged against
+ * the time the first of a run of such steps arrived, so waiting never makes a jump plausible;
+ * after several in a row the anchor is taken to be the outlier and is moved without adding the
+ * leg. Distance is summed with Kahan compensation so long shifts of short steps don't lose
+ * precision.
+ */
+final class TripOdometer {
+
+  static final double DEFAULT_MAX_ACCURACY = 50;
+  static final double DEFAULT_MIN_STEP = 5;
+  static final double DEFAULT_MOVING_SPEED = 0.5;
+  // ~250 km/h, anything faster between two fixes is a position jump
+  private static final double MAX_PLAUSIBLE_SPEED = 70;
+  // after this many implausible steps in a row the anchor itself is the outlier
+  private static final int MAX_OUTLIERS = 3;
+
+  private double mMaxAccuracy = DEFAULT_MAX_ACCURACY;
+  private double mMinStep = DEFAULT_MIN_STEP;
+  private double mMovingSpeed = DEFAULT_MOVING_SPEED;
+  private double mMilestone;
+
+  private double mDistance;
+  private double mCompensation;
+  private long mMovingTime;
+  private double mMaxSpeed;
+  private int mAccepted;
+  private int mRejected;
+  private double mNextMilestone;
+
+  private boolean mHasAnchor;
+  private double mAnchorLatitude;
+  private double mAnchorLongitude;
+  private long mAnchorTime;
+  private long mLastTime;
+  private int mOutliers;
+  private long mFirstOutlierTime;
+
+  synchronized void configure(double maxAccuracy, double minStep, double movingSpeed,
+                              double milestone) {
+    mMaxAccuracy = maxAccuracy;
+    mMinStep = minStep;
+    mMovingSpeed = movingSpeed;
+    mMilestone = milestone;
+    mNextMilestone = nextMilestoneAfter(mDistance);
+  }
+
+  /**
+   * @param time when the fix was received; the SDK's own time stands still while the device
+   *        doesn't move
+   * @return true if this fix carried the total past a distance milestone
+   */
+  synchronized boolean feed(BDLocation location, long time) {
+    if (!LocationCodec.hasPosition(location)) {
+      return false;
+    }
+    if (location.getRadius() > mMaxAccuracy || time <= mLastTime) {
+      mRejected++;
+      return false;
+    }
+    double latitude = location.getLatitude();
+    double longitude = location.getLongitude();
+    if (!mHasAnchor) {
+      anchor(latitude, longitude, time);
+      mAccepted++;
+      return false;
+    }
+
+    long elapsed = time - mAnchorTime;
+    double step = GeoMath.distance(mAnchorLatitude, mAnchorLongitude, latitude, longitude);
+    long window = mOutliers > 0 ? mFirstOutlierTime - mAnchorTime : elapsed;
+    if (step * 1000 / window > MAX_PLAUSIBLE_SPEED) {
+      mRejected++;
+      if (mOutliers++ == 0) {
+        mFirstOutlierTime = time;
+      }
+      if (mOutliers >= MAX_OUTLIERS) {
+        anchor(latitude, longitude, time);
+      }
+      return false;
+    }
+    mOutliers = 0;
+    double stepSpeed = step * 1000 / elapsed;
+    mLastTime = time;
+    if (step < Math.max(mMinStep, location.getRadius())) {
+      return false;
+    }
+
+    add(step);
+    if (stepSpeed >= mMovingSpeed) {
+      mMovingTime += elapsed;
+    }
+    // SDK speed is km/h and only meaningful for GPS fixes
+    double speed = location.hasSpeed() ? location.getSpeed() / 3.6 : stepSpeed;
+    mMaxSpeed = Math.max(mMaxSpeed, Math.min(speed, MAX_PLAUSIBLE_SPEED));
+    anchor(latitude, longitude, time);
+    mAccepted++;
+
+    if (mMilestone > 0 && mDistance >= mNextMilestone) {
+      mNextMilestone = nextMilestoneAfter(mDistance);
+      return true;
+    }
+    return false;
+  }
+
+  synchronized void reset() {
+    mDistance = 0;
+    mCompensation = 0;
+    mMovingTime = 0;
+    mMaxSpeed = 0;
+    mAccepted = 0;
+    mRejected = 0;
+    mHasAnchor = false;
+    mLastTime = 0;
+    mOutliers = 0;
+    mNextMilestone = nextMilestoneAfter(0);
+  }
+
+  synchronized WritableMap toMap() {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("distance", mDistance);
+    map.putDouble("movingTime", mMovingTime);
+    map.putDouble("maxSpeed", mMaxSpeed);
+    map.putDouble("averageSpeed", mMovingTime > 0 ? mDistance * 1000 / mMovingTime : 0);
+    map.putInt("acceptedFixes", mAccepted);
+    map.putInt("rejectedFixes", mRejected);
+    return map;
+  }
+
+  private void add(double value) {
+    double y = value - mCompensation;
+    double t = mDistance + y;
+    mCompensation = (t - mDistance) - y;
+    mDistance = t;
+  }
+
+  private void anchor(double latitude, double longitude, long time) {
+    mHasAnchor = true;
+    mAnchorLatitude = latitude;
+    mAnchorLongitude = longitude;
+    mAnchorTime = time;
+    mLastTime = time;
+    mOutliers = 0;
+  }
+
+  private double nextMilestoneAfter(double distance) {
+    if (mMilestone <= 0) return Double.MAX_VALUE;
+    return (Math.floor(distance / mMilestone) + 1) * mMilestone;
+  }
+}
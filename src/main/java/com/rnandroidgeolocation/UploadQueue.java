@@ -0,0 +1,234 @@
+package com.rnandroidgeolocation;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * The on-disk FIFO behind {@link LocationUploader}. Each sealed batch is one gzipped file,
+ * named {@code <created>-<sequence>-<fixes>.json.gz} so names sort in creation order.
+ *
+ * Batches are written to a temporary name and renamed into place, so a crash mid-write never
+ * leaves a truncated batch in the queue. A batch the server rejects outright is moved to a
+ * dead-letter directory rather than blocking everything behind it, and the queue is capped by
+ * depth and age so an unreachable server can't fill the disk.
+ *
+ * Not thread-safe; the uploader only uses it from its own thread.
+ */
+final class UploadQueue {
+
+  static final int DEFAULT_MAX_DEPTH = 500;
+  static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+  /** Nothing is queued. */
+  static final int EMPTY = 0;
+  /** The head batch was delivered and removed. */
+  static final int SENT = 1;
+  /** Sending failed in a way worth retrying; the head batch stays. */
+  static final int RETRY = 2;
+  /** The server refused the head batch for good; it was moved to the dead letters. */
+  static final int REJECTED = 3;
+
+  private static final String SUFFIX = ".json.gz";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int TIMEOUT = 15 * 1000;
+
+  private final File mDir;
+  private final File mDeadLetterDir;
+  private int mMaxDepth = DEFAULT_MAX_DEPTH;
+  private long mMaxAge = DEFAULT_MAX_AGE;
+  private int mSequence;
+  private long mDropped;
+  private @Nullable String mLastHead;
+
+  UploadQueue(File dir) {
+    mDir = dir;
+    mDeadLetterDir = new File(dir, "dead");
+  }
+
+  void setLimits(int maxDepth, long maxAge) {
+    mMaxDepth = Math.max(1, maxDepth);
+    mMaxAge = maxAge;
+  }
+
+  /**
+   * Creates the directory and deletes batches left half-written by an earlier process.
+   */
+  void open() {
+    mDir.mkdirs();
+    String[] names = mDir.list();
+    if (names == null) return;
+    for (String name : names) {
+      if (name.endsWith(TEMP_SUFFIX)) new File(mDir, name).delete();
+    }
+  }
+
+  /**
+   * Persists a batch, then drops the oldest batches beyond the depth and age limits.
+   */
+  void enqueue(JSONArray fixes, long created, long now) throws IOException {
+    String name = created + "-" + (mSequence++) + "-" + fixes.length() + SUFFIX;
+    mDir.mkdirs();
+    File temp = new File(mDir, name + TEMP_SUFFIX);
+    try {
+      JSONObject body = new JSONObject();
+      body.put("fixes", fixes);
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(temp));
+      try {
+        out.write(body.toString().getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(new File(mDir, name))) {
+        throw new IOException("Could not move " + temp + " into the queue");
+      }
+    } catch (JSONException e) {
+      throw new IOException(e);
+    } finally {
+      temp.delete();
+    }
+    trim(now);
+  }
+
+  /**
+   * POSTs the oldest batch. {@link #lastHead} names it afterwards.
+   */
+  int sendNext(String url, Map<String, String> headers) {
+    String[] queued = queued();
+    if (queued.length == 0) return EMPTY;
+    mLastHead = queued[0];
+    File file = new File(mDir, queued[0]);
+    int status;
+    try {
+      status = post(url, headers, readFile(file));
+    } catch (IOException e) {
+      return RETRY;
+    }
+    if (status >= 200 && status < 300) {
+      file.delete();
+      return SENT;
+    }
+    if (isRetryable(status)) return RETRY;
+    mDeadLetterDir.mkdirs();
+    if (!file.renameTo(new File(mDeadLetterDir, queued[0]))) file.delete();
+    return REJECTED;
+  }
+
+  /**
+   * Client errors other than timeouts and throttling mean resending the same body won't help.
+   */
+  static boolean isRetryable(int status) {
+    return status < 400 || status >= 500 || status == 408 || status == 429;
+  }
+
+  @Nullable String lastHead() {
+    return mLastHead;
+  }
+
+  String[] queued() {
+    return list(mDir);
+  }
+
+  int deadLetterCount() {
+    return list(mDeadLetterDir).length;
+  }
+
+  /**
+   * @return how many batches were discarded by the depth and age limits
+   */
+  long getDropped() {
+    return mDropped;
+  }
+
+  static long createdAt(String name) {
+    try {
+      return Long.parseLong(name.substring(0, name.indexOf('-')));
+    } catch (RuntimeException e) {
+      return 0;
+    }
+  }
+
+  static int fixCount(String name) {
+    try {
+      return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1, name.indexOf('.')));
+    } catch (RuntimeException e) {
+      return 0;
+    }
+  }
+
+  private void trim(long now) {
+    String[] queued = queued();
+    for (int i = 0; i < queued.length; i++) {
+      if (queued.length - i <= mMaxDepth && now - createdAt(queued[i]) <= mMaxAge) break;
+      if (new File(mDir, queued[i]).delete()) mDropped++;
+    }
+  }
+
+  private static int post(String url, Map<String, String> headers, byte[] body)
+          throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      connection.setConnectTimeout(TIMEOUT);
+      connection.setReadTimeout(TIMEOUT);
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+      connection.setFixedLengthStreamingMode(body.length);
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static String[] list(File dir) {
+    String[] names = dir.list();
+    if (names == null) return new String[0];
+    int count = 0;
+    for (String name : names) {
+      if (name.endsWith(SUFFIX)) names[count++] = name;
+    }
+    names = Arrays.copyOf(names, count);
+    Arrays.sort(names);
+    return names;
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
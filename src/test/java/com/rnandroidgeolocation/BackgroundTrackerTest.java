@@ -0,0 +1,155 @@
+package com.rnandroidgeolocation;
+
+import com.baidu.location.BDLocation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link BackgroundTracker} with fake fixes and a simulated clock.
+ */
+public class BackgroundTrackerTest {
+
+  private long mNow;
+  private final List<List<BDLocation>> mBatches = new ArrayList<>();
+  private final List<Integer> mIntervals = new ArrayList<>();
+  private BackgroundTracker mTracker;
+
+  @Before
+  public void setUp() {
+    mNow = 1000000;
+    mTracker = new BackgroundTracker(
+      new BackgroundTracker.Clock() {
+        @Override
+        public long now() {
+          return mNow;
+        }
+      },
+      new BackgroundTracker.Sink() {
+        @Override
+        public void onBatch(List<BDLocation> fixes) {
+          mBatches.add(fixes);
+        }
+      },
+      new BackgroundTracker.IntervalControl() {
+        @Override
+        public void setInterval(int millis) {
+          mIntervals.add(millis);
+        }
+      });
+  }
+
+  @Test
+  public void flushesWhenBatchIsFull() {
+    mTracker.configure(3, 60 * 60 * 1000);
+    offer(0);
+    offer(0);
+    assertTrue(mBatches.isEmpty());
+    offer(0);
+
+    assertEquals(1, mBatches.size());
+    assertEquals(3, mBatches.get(0).size());
+  }
+
+  @Test
+  public void flushesWhenOldestFixIsDue() {
+    mTracker.configure(100, 10000);
+    offer(0);
+    mNow += 5000;
+    offer(0);
+    assertTrue(mBatches.isEmpty());
+    mNow += 5000;
+    offer(0);
+
+    assertEquals(1, mBatches.size());
+    assertEquals(3, mBatches.get(0).size());
+  }
+
+  @Test
+  public void tickFlushesWithoutFurtherFixes() {
+    mTracker.configure(100, 10000);
+    offer(0);
+    mNow += 9999;
+    mTracker.tick();
+    assertTrue(mBatches.isEmpty());
+    mNow += 1;
+    mTracker.tick();
+
+    assertEquals(1, mBatches.size());
+    assertEquals(1, mBatches.get(0).size());
+    mTracker.tick();
+    assertEquals(1, mBatches.size());
+  }
+
+  @Test
+  public void flushDeliversPendingFixesOnce() {
+    mTracker.configure(100, 10000);
+    offer(0);
+    mTracker.flush();
+    mTracker.flush();
+
+    assertEquals(1, mBatches.size());
+  }
+
+  @Test
+  public void firstFixSetsTierImmediately() {
+    offer(0);
+
+    assertEquals(BackgroundTracker.TIER_STATIONARY, mTracker.getTier());
+    assertEquals(1, mIntervals.size());
+    assertEquals(BackgroundTracker.TIER_INTERVALS[BackgroundTracker.TIER_STATIONARY],
+            (int) mIntervals.get(0));
+  }
+
+  @Test
+  public void tierChangeNeedsTwoAgreeingFixes() {
+    offer(0);
+    // 36 km/h is 10 m/s, well inside the fast tier
+    offer(36);
+    assertEquals(BackgroundTracker.TIER_STATIONARY, mTracker.getTier());
+    offer(36);
+
+    assertEquals(BackgroundTracker.TIER_FAST, mTracker.getTier());
+    assertEquals(2, mIntervals.size());
+    assertEquals(BackgroundTracker.TIER_INTERVALS[BackgroundTracker.TIER_FAST],
+            (int) mIntervals.get(1));
+  }
+
+  @Test
+  public void singleNoisySpeedDoesNotChangeTier() {
+    offer(0);
+    offer(36);
+    offer(0);
+    offer(36);
+
+    assertEquals(BackgroundTracker.TIER_STATIONARY, mTracker.getTier());
+    assertEquals(1, mIntervals.size());
+  }
+
+  @Test
+  public void ignoresFixesWithoutPosition() {
+    mTracker.configure(1, 10000);
+    BDLocation failure = new BDLocation();
+    failure.setLocType(BDLocation.TypeNetWorkException);
+    mTracker.offer(failure);
+
+    assertTrue(mBatches.isEmpty());
+    assertTrue(mIntervals.isEmpty());
+  }
+
+  private void offer(float speedKmh) {
+    BDLocation location = new BDLocation();
+    location.setLocType(BDLocation.TypeGpsLocation);
+    location.setLatitude(39.9);
+    location.setLongitude(116.4);
+    location.setRadius(10);
+    location.setSpeed(speedKmh);
+    mTracker.offer(location);
+  }
+}
@@ -0,0 +1,193 @@
+package com.rnandroidgeolocation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link UploadQueue} against a local HTTP stand-in that answers with scripted statuses.
+ */
+public class UploadQueueTest {
+
+  private HttpServer mServer;
+  private String mUrl;
+  private final List<Integer> mStatuses = Collections.synchronizedList(new ArrayList<Integer>());
+  private final List<String> mBodies = Collections.synchronizedList(new ArrayList<String>());
+  private File mDir;
+  private UploadQueue mQueue;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mServer.createContext("/fixes", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        mBodies.add(readGzip(exchange.getRequestBody()));
+        int status = mStatuses.isEmpty() ? 200 : mStatuses.remove(0);
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    mServer.start();
+    mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/fixes";
+
+    mDir = File.createTempFile("uploads", "");
+    mDir.delete();
+    mQueue = new UploadQueue(mDir);
+    mQueue.open();
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop(0);
+    deleteRecursively(mDir);
+  }
+
+  @Test
+  public void sendsOldestBatchFirstAndRemovesIt() throws Exception {
+    mQueue.enqueue(batch(1), 1000, 1000);
+    mQueue.enqueue(batch(2), 2000, 2000);
+
+    assertEquals(UploadQueue.SENT, send());
+    assertEquals(1, new JSONObject(mBodies.get(0)).getJSONArray("fixes").length());
+    assertEquals(1000, UploadQueue.createdAt(mQueue.lastHead()));
+    assertEquals(1, UploadQueue.fixCount(mQueue.lastHead()));
+
+    assertEquals(UploadQueue.SENT, send());
+    assertEquals(2, UploadQueue.fixCount(mQueue.lastHead()));
+    assertEquals(UploadQueue.EMPTY, send());
+  }
+
+  @Test
+  public void keepsBatchOnRetryableStatus() throws Exception {
+    mQueue.enqueue(batch(1), 1000, 1000);
+    mStatuses.add(503);
+    mStatuses.add(429);
+    mStatuses.add(408);
+
+    assertEquals(UploadQueue.RETRY, send());
+    assertEquals(UploadQueue.RETRY, send());
+    assertEquals(UploadQueue.RETRY, send());
+    assertEquals(1, mQueue.queued().length);
+    assertEquals(UploadQueue.SENT, send());
+    assertEquals(0, mQueue.queued().length);
+  }
+
+  @Test
+  public void retriesWhenServerIsUnreachable() throws Exception {
+    mQueue.enqueue(batch(1), 1000, 1000);
+    mServer.stop(0);
+
+    assertEquals(UploadQueue.RETRY, send());
+    assertEquals(1, mQueue.queued().length);
+  }
+
+  @Test
+  public void movesRejectedBatchToDeadLettersAndCarriesOn() throws Exception {
+    mQueue.enqueue(batch(1), 1000, 1000);
+    mQueue.enqueue(batch(2), 2000, 2000);
+    mStatuses.add(400);
+
+    assertEquals(UploadQueue.REJECTED, send());
+    assertEquals(1, mQueue.deadLetterCount());
+    assertEquals(1, mQueue.queued().length);
+
+    assertEquals(UploadQueue.SENT, send());
+    assertEquals(2, UploadQueue.fixCount(mQueue.lastHead()));
+  }
+
+  @Test
+  public void classifiesStatuses() {
+    assertTrue(UploadQueue.isRetryable(500));
+    assertTrue(UploadQueue.isRetryable(408));
+    assertTrue(UploadQueue.isRetryable(429));
+    assertFalse(UploadQueue.isRetryable(400));
+    assertFalse(UploadQueue.isRetryable(413));
+  }
+
+  @Test
+  public void dropsOldestBatchesBeyondDepth() throws Exception {
+    mQueue.setLimits(2, UploadQueue.DEFAULT_MAX_AGE);
+    mQueue.enqueue(batch(1), 1000, 1000);
+    mQueue.enqueue(batch(2), 2000, 2000);
+    mQueue.enqueue(batch(3), 3000, 3000);
+
+    String[] queued = mQueue.queued();
+    assertEquals(2, queued.length);
+    assertEquals(2000, UploadQueue.createdAt(queued[0]));
+    assertEquals(1, mQueue.getDropped());
+  }
+
+  @Test
+  public void dropsBatchesBeyondAge() throws Exception {
+    mQueue.setLimits(UploadQueue.DEFAULT_MAX_DEPTH, 10000);
+    mQueue.enqueue(batch(1), 1000, 1000);
+    mQueue.enqueue(batch(1), 20000, 20000);
+
+    String[] queued = mQueue.queued();
+    assertEquals(1, queued.length);
+    assertEquals(20000, UploadQueue.createdAt(queued[0]));
+    assertEquals(1, mQueue.getDropped());
+  }
+
+  @Test
+  public void ignoresAndCleansUpHalfWrittenBatches() throws Exception {
+    File partial = new File(mDir, "500-0-3.json.gz.tmp");
+    assertTrue(partial.createNewFile());
+
+    assertEquals(0, mQueue.queued().length);
+    mQueue.open();
+    assertFalse(partial.exists());
+  }
+
+  private int send() {
+    return mQueue.sendNext(mUrl, Collections.<String, String>emptyMap());
+  }
+
+  private static JSONArray batch(int size) throws Exception {
+    JSONArray fixes = new JSONArray();
+    for (int i = 0; i < size; i++) {
+      fixes.put(new JSONObject().put("latitude", 39.9).put("longitude", 116.4 + i));
+    }
+    return fixes;
+  }
+
+  private static String readGzip(InputStream body) throws IOException {
+    InputStream in = new GZIPInputStream(body);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) deleteRecursively(child);
+    }
+    file.delete();
+  }
+}